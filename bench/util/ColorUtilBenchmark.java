@@ -0,0 +1,53 @@
+package util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blending a color on every call against looking it up in a {@link Gradient}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColorUtilBenchmark {
+  private static final Gradient GRADIENT = Gradient.define(
+      "bench", Gradient.DEFAULT_STEPS, Color.GREEN, Color.YELLOW, Color.RED);
+
+  private float mP;
+
+  private float nextP() {
+    mP += 0.0137f;
+    if (mP > 1) {
+      mP -= 1;
+    }
+    return mP;
+  }
+
+  @Benchmark
+  public Color interpolate() {
+    return ColorUtil.interpolate(Color.GREEN, Color.RED, nextP());
+  }
+
+  @Benchmark
+  public Color interpolateThree() {
+    return ColorUtil.interpolate(Color.GREEN, Color.YELLOW, Color.RED, nextP());
+  }
+
+  @Benchmark
+  public Color gradientColorAt() {
+    return GRADIENT.colorAt(nextP());
+  }
+}
@@ -0,0 +1,68 @@
+package world;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drawing an elevation slice of a grown, seeded map offscreen, as the visualizer draws it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class RenderBenchmark {
+  private static final long SEED = 42;
+  private static final int GROWN_TICKS = 500;
+
+  @Param({"64", "256"})
+  public int size;
+
+  @Param({"800"})
+  public int imageSize;
+
+  private WorldMap mMap;
+  private OffscreenRenderer mRenderer;
+
+  @Setup(Level.Trial)
+  public void grow() {
+    mMap = TerrainGenerator.createMap("bench", size, size, SEED);
+    for (int t = 0; t < GROWN_TICKS; t++) {
+      mMap.updateEntities();
+    }
+    mRenderer = new OffscreenRenderer(mMap, imageSize, imageSize);
+    mRenderer.setElevationSlice(mMap.getMaxHeight() / 2, true /* seeAllBelow */);
+  }
+
+  /**
+   * Entities over the cached terrain layer of the slice.
+   */
+  @Benchmark
+  public BufferedImage drawSlice() {
+    return mRenderer.render();
+  }
+
+  /**
+   * The terrain layer as well, as after the slice or the terrain changed.
+   */
+  @Benchmark
+  public BufferedImage drawSliceWithTerrain() {
+    mRenderer.setElevationSlice(mMap.getMaxHeight() / 2, false /* seeAllBelow */);
+    mRenderer.setElevationSlice(mMap.getMaxHeight() / 2, true /* seeAllBelow */);
+    return mRenderer.render();
+  }
+}
@@ -0,0 +1,57 @@
+package world;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generating a whole seeded map, with elevation on a pool of {@link #threads} threads, or on the
+ * calling thread for 0.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TerrainGeneratorBenchmark {
+  private static final long SEED = 42;
+
+  @Param({"64", "256", "1024"})
+  public int size;
+
+  @Param({"0", "4"})
+  public int threads;
+
+  private ForkJoinPool mPool;
+
+  @Setup(Level.Trial)
+  public void startPool() {
+    mPool = threads > 0 ? new ForkJoinPool(threads) : null;
+  }
+
+  @TearDown(Level.Trial)
+  public void stopPool() {
+    if (mPool != null) {
+      mPool.shutdown();
+    }
+  }
+
+  @Benchmark
+  public WorldMap createMap() {
+    return TerrainGenerator.createMap("bench", size, size, SEED, mPool);
+  }
+}
@@ -0,0 +1,112 @@
+package world;
+
+import entity.api.Entity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups and ticks on a seeded map, grown for {@link #grownTicks} ticks first so the population
+ * sizes differ between runs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WorldMapBenchmark {
+  private static final long SEED = 42;
+  // as deep as plants look for water
+  private static final int ROOT_DEPTH = 2;
+  private static final int POSITIONS = 1 << 12;
+
+  @Param({"64", "256"})
+  public int size;
+
+  @Param({"0", "500", "2000"})
+  public int grownTicks;
+
+  private WorldMap mGrown;
+  private WorldMap mMap;
+  private final int[] mRows = new int[POSITIONS];
+  private final int[] mColumns = new int[POSITIONS];
+  private int mNext;
+
+  @Setup(Level.Trial)
+  public void grow() {
+    mGrown = TerrainGenerator.createMap("bench", size, size, SEED);
+    for (int t = 0; t < grownTicks; t++) {
+      mGrown.updateEntities();
+    }
+    SplittableRandom random = new SplittableRandom(SEED);
+    for (int i = 0; i < POSITIONS; i++) {
+      mRows[i] = random.nextInt(size);
+      mColumns[i] = random.nextInt(size);
+    }
+  }
+
+  /**
+   * Every iteration ticks its own copy of the grown map, so iterations start from the same state.
+   */
+  @Setup(Level.Iteration)
+  public void fork() {
+    mMap = mGrown.fork();
+  }
+
+  /**
+   * Times a fixed batch of ticks, one life update for every entity, per iteration. Timed runs
+   * would tick the map thousands of times per iteration, and the population would no longer be
+   * the one grown to.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Warmup(iterations = 10, batchSize = Entity.MOVES_PER_AGE)
+  @Measurement(iterations = 20, batchSize = Entity.MOVES_PER_AGE)
+  public void updateEntities() {
+    mMap.updateEntities();
+  }
+
+  /**
+   * Looks up both entities on a tile, through the map's spatial index.
+   */
+  @Benchmark
+  public void getEntitiesAtPosition(Blackhole blackhole) {
+    int i = mNext++ & (POSITIONS - 1);
+    blackhole.consume(mMap.getNonOccupyingEntityAt(mRows[i], mColumns[i]));
+    blackhole.consume(mMap.getOccupyingEntityAt(mRows[i], mColumns[i]));
+  }
+
+  @Benchmark
+  public boolean hasWaterNearby() {
+    int i = mNext++ & (POSITIONS - 1);
+    return mMap.hasWaterNearby(mRows[i], mColumns[i], ROOT_DEPTH);
+  }
+
+  /**
+   * Looks up every tile once, as a full scan of the map does.
+   */
+  @Benchmark
+  public void getEntitiesAtEveryPosition(Blackhole blackhole) {
+    for (int r = 0; r < size; r++) {
+      for (int c = 0; c < size; c++) {
+        blackhole.consume(mMap.getNonOccupyingEntityAt(r, c));
+        blackhole.consume(mMap.getOccupyingEntityAt(r, c));
+      }
+    }
+  }
+}
@@ -0,0 +1,89 @@
+import world.BatchRunner;
+import world.WorldConfig;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Runs a parameter sweep of worlds without a display, see {@link BatchRunner}.
+ * <p>
+ * Usage: BatchDriver sweepFile resultsFile [ticks] [threads]
+ * <p>
+ * The sweep file has a line per {@link WorldConfig#PARAMETERS parameter} to vary, e.g.
+ * <pre>
+ *   # comment
+ *   width = 100, 200
+ *   seed = 1..20
+ *   matingCooldown = 2, 3, 5
+ * </pre>
+ * and every combination of the values is run, here 2 * 20 * 3 worlds. Values are separated by
+ * commas, a..b stands for all whole numbers from a to b. Results are written to resultsFile as
+ * CSV. Threads defaults to the number of cores.
+ */
+public class BatchDriver {
+
+  public static void main(String[] args)
+      throws IOException, InterruptedException, ExecutionException {
+    System.setProperty("java.awt.headless", "true");
+    if (args.length < 2) {
+      System.err.println("Usage: BatchDriver sweepFile resultsFile [ticks] [threads]");
+      System.exit(1);
+    }
+    long ticks = args.length > 2 ? Long.parseLong(args[2]) : 10000;
+    int threads = args.length > 3
+                  ? Integer.parseInt(args[3])
+                  : Runtime.getRuntime().availableProcessors();
+
+    List<WorldConfig> configs = BatchRunner.sweep(readSweep(args[0]));
+    System.out.println("Running " + configs.size() + " worlds for " + ticks + " ticks on "
+                       + threads + " threads");
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    long start = System.nanoTime();
+    try (Writer results = Files.newBufferedWriter(Paths.get(args[1]))) {
+      new BatchRunner(pool, results).run(configs, ticks);
+    } finally {
+      pool.shutdownNow();
+    }
+    System.out.println("Wrote " + args[1] + " in "
+                       + (System.nanoTime() - start) / 1_000_000_000 + " s");
+  }
+
+  // Parameter names to the values to try, in the order of the sweep file.
+  private static Map<String, List<String>> readSweep(String path) throws IOException {
+    Map<String, List<String>> sweep = new LinkedHashMap<>();
+    for (String line : Files.readAllLines(Paths.get(path))) {
+      line = line.replaceFirst("#.*", "").trim();
+      if (line.isEmpty()) {
+        continue;
+      }
+      int equals = line.indexOf('=');
+      if (equals < 0) {
+        throw new IllegalArgumentException("Expected name = values: " + line);
+      }
+      List<String> values = new ArrayList<>();
+      for (String value : line.substring(equals + 1).split(",")) {
+        value = value.trim();
+        int range = value.indexOf("..");
+        if (range > 0) {
+          long to = Long.parseLong(value.substring(range + 2));
+          for (long v = Long.parseLong(value.substring(0, range)); v <= to; v++) {
+            values.add(Long.toString(v));
+          }
+        } else {
+          values.add(value);
+        }
+      }
+      sweep.put(line.substring(0, equals).trim(), values);
+    }
+    return sweep;
+  }
+
+}
@@ -0,0 +1,160 @@
+import util.Rect2d;
+import world.FrameExporter;
+import world.HeadlessRunner;
+import world.ShardCoordinator;
+import world.TerrainGenerator;
+import world.WorldMap;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Runs a simulation without a display.
+ * <p>
+ * Usage: HeadlessDriver [--compact-plants] [--metrics] [--detail-area size] [--shards n]
+ * [--seed seed] [frame options] [width] [height] [ticks] [threads]
+ * <p>
+ * With threads > 0 terrain is generated and entities are updated in parallel on a fork-join pool
+ * of that size.
+ * --compact-plants stores plants in a {@link world.WorldMap#useCompactPlants() PlantPopulation}.
+ * --metrics collects {@link world.WorldMetrics} and prints them at the end.
+ * --detail-area simulates only a size x size area in the middle of the map entity by entity, and
+ * the rest in aggregate, see {@link world.WorldMap#setAreaOfInterest}.
+ * --shards runs the map in n worker processes, each a strip of rows, see {@link ShardCoordinator}.
+ * Threads then only speed up terrain generation.
+ * Runs with the same seed and options are identical.
+ * <p>
+ * Frame options save a time-lapse of the run, see {@link FrameExporter}:
+ * --frames dir writes frames to dir, --frame-stride n every nth tick (default 100),
+ * --frame-size WxH at that resolution (default 800x800), --frame-slice e only tiles at or below
+ * elevation e, --raw-frames as one raw RGB file instead of PNGs.
+ */
+public class HeadlessDriver {
+
+  public static void main(String[] args) throws IOException {
+    System.setProperty("java.awt.headless", "true");
+    boolean compactPlants = false;
+    boolean metrics = false;
+    Integer detailArea = null;
+    int shards = 0;
+    Long seed = null;
+    String framesDirectory = null;
+    int frameStride = 100;
+    int frameWidth = 800;
+    int frameHeight = 800;
+    Integer frameSlice = null;
+    boolean rawFrames = false;
+    List<String> positional = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      if ("--compact-plants".equals(args[i])) {
+        compactPlants = true;
+      } else if ("--metrics".equals(args[i])) {
+        metrics = true;
+      } else if ("--detail-area".equals(args[i])) {
+        detailArea = Integer.parseInt(args[++i]);
+      } else if ("--shards".equals(args[i])) {
+        shards = Integer.parseInt(args[++i]);
+      } else if ("--seed".equals(args[i])) {
+        seed = Long.parseLong(args[++i]);
+      } else if ("--frames".equals(args[i])) {
+        framesDirectory = args[++i];
+      } else if ("--frame-stride".equals(args[i])) {
+        frameStride = Integer.parseInt(args[++i]);
+      } else if ("--frame-size".equals(args[i])) {
+        String[] size = args[++i].split("x");
+        frameWidth = Integer.parseInt(size[0]);
+        frameHeight = Integer.parseInt(size[1]);
+      } else if ("--frame-slice".equals(args[i])) {
+        frameSlice = Integer.parseInt(args[++i]);
+      } else if ("--raw-frames".equals(args[i])) {
+        rawFrames = true;
+      } else {
+        positional.add(args[i]);
+      }
+    }
+    int width = positional.size() > 0 ? Integer.parseInt(positional.get(0)) : 50;
+    int height = positional.size() > 1 ? Integer.parseInt(positional.get(1)) : 50;
+    long ticks = positional.size() > 2 ? Long.parseLong(positional.get(2)) : 10000;
+    int threads = positional.size() > 3 ? Integer.parseInt(positional.get(3)) : 0;
+    if (shards > 0 && framesDirectory != null) {
+      throw new IllegalArgumentException("Sharded runs cannot export frames");
+    }
+
+    ForkJoinPool pool = threads > 0 ? new ForkJoinPool(threads) : null;
+    WorldMap map = TerrainGenerator.createMap(
+        "headless", width, height,
+        seed != null ? seed : ThreadLocalRandom.current().nextLong(), pool);
+    if (compactPlants) {
+      map.useCompactPlants();
+    }
+    if (shards > 0) {
+      runSharded(map, shards, ticks, metrics);
+      return;
+    }
+    if (pool != null) {
+      map.setParallelUpdates(pool);
+    }
+    if (metrics) {
+      map.enableMetrics();
+    }
+    if (detailArea != null) {
+      map.setAreaOfInterest(new Rect2d((width - detailArea) / 2, (height - detailArea) / 2,
+                                       detailArea, detailArea));
+    }
+    HeadlessRunner runner = new HeadlessRunner(map);
+    FrameExporter frameExporter = null;
+    if (framesDirectory != null) {
+      frameExporter = new FrameExporter(map, Paths.get(framesDirectory), frameWidth, frameHeight,
+                                        Runtime.getRuntime().availableProcessors());
+      frameExporter.setTickStride(frameStride);
+      frameExporter.setRawOutput(rawFrames);
+      if (frameSlice != null) {
+        frameExporter.setElevationSlice(frameSlice, true /* seeAllBelow */);
+      }
+      runner.setFrameExporter(frameExporter);
+    }
+    double ticksPerSecond = runner.run(ticks);
+    if (frameExporter != null) {
+      frameExporter.close();
+      System.out.println("Exported " + frameExporter.getFramesExported() + " frames to "
+                         + framesDirectory);
+    }
+
+    printResults(runner.getTicks(), ticksPerSecond, runner.getPopulation());
+    if (metrics) {
+      map.getMetrics().getRegistry().dump(System.out);
+    }
+  }
+
+  private static void runSharded(WorldMap map, int shards, long ticks, boolean metrics)
+      throws IOException {
+    try (ShardCoordinator coordinator = new ShardCoordinator(map, shards)) {
+      long start = System.nanoTime();
+      // report often enough for shards.tickNanos to show how tick times spread
+      coordinator.run(ticks, 100);
+      long elapsed = Math.max(1, System.nanoTime() - start);
+      printResults(ticks, ticks * 1e9 / elapsed, coordinator.getPopulation());
+      if (metrics) {
+        coordinator.getRegistry().dump(System.out);
+      }
+    }
+  }
+
+  private static void printResults(long ticks, double ticksPerSecond,
+                                   Map<String, Integer> population) {
+    System.out.println("Ran " + ticks + " ticks at "
+                       + String.format("%.1f", ticksPerSecond) + " ticks/sec");
+    int total = 0;
+    for (Map.Entry<String, Integer> entry : population.entrySet()) {
+      System.out.println("  " + entry.getKey() + ": " + entry.getValue());
+      total += entry.getValue();
+    }
+    System.out.println("Final population: " + total);
+  }
+
+}
@@ -2,11 +2,14 @@ import world.TerrainGenerator;
 import world.WorldMap;
 import world.WorldVisualizer;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+
 public class TestDriver {
 
-  public static void main(String[] args) {
+  public static void main(String[] args) throws IOException {
     WorldMap map = TerrainGenerator.createMap("world1", 50, 50);
-    map.save();
+    map.save(Paths.get("world1.world"));
     WorldVisualizer.visualize(map);
   }
 
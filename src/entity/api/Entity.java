@@ -1,19 +1,41 @@
 package entity.api;
 
+import util.RandomStream;
 import util.Rect2d;
 import world.TerrainType;
 import world.WorldMap;
+import world.WorldMetrics;
 
 import java.awt.*;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
 public abstract class Entity {
-  static int MOVES_PER_AGE = 10;
+  public static final int MOVES_PER_AGE = 10;
+  // See getSpriteKey()
+  public static final int NO_SPRITE_KEY = -1;
 
   private int lifeUpdateCounter;
+  private int ticksSinceDeath;
+
+  // Position in the EntityList holding this entity, -1 if in none
+  int listIndex = -1;
+  // Tick the entity is due in its EntityScheduler, -1 if none
+  long dueTick = -1;
+  // Map tick up to which updates have been counted, see catchUp()
+  long syncedTick;
+
   private int curR;
   private int curC;
   private int direction;
 
+  // Move planned during a parallel tick, applied in commitPlannedUpdate()
+  private int plannedDr;
+  private int plannedDc;
+  // Appearance changed while planning, reported to the map in commitPlannedUpdate()
+  private boolean changedWhilePlanning;
+
   private int age;
 
   // If health hits 0, entity dies
@@ -21,9 +43,21 @@ public abstract class Entity {
   private GrowthStage growthStage = GrowthStage.YOUTH;
 
   private final WorldMap worldMap;
+  private final RandomStream random;
 
+  /**
+   * Creates an entity with its own random stream split off the map's. Only use from the thread
+   * driving the map, entities created during a tick should pass a stream split off their parent's.
+   */
   public Entity(WorldMap worldMap, int initR, int initC, int startingHealth) {
+    this(worldMap, initR, initC, startingHealth, worldMap.splitRandom());
+  }
+
+  public Entity(WorldMap worldMap, int initR, int initC, int startingHealth,
+                RandomStream random) {
     this.worldMap = worldMap;
+    this.random = random;
+    syncedTick = worldMap.getTick();
     curR = initR;
     curC = initC;
     age = 1;
@@ -38,18 +72,34 @@ public abstract class Entity {
     return curC;
   }
 
+  /**
+   * Places an entity that is not on a map yet somewhere else, e.g. one handed over by another
+   * process whose tile was taken in the meantime.
+   *
+   * @throws IllegalStateException if the entity is on the map, which indexes it by its tile.
+   */
+  public void setPosition(int r, int c) {
+    if (listIndex >= 0
+        || worldMap.getOccupyingEntityAt(curR, curC) == this
+        || worldMap.getNonOccupyingEntityAt(curR, curC) == this) {
+      throw new IllegalStateException("Cannot set the position of an entity on the map");
+    }
+    curR = r;
+    curC = c;
+  }
+
   public int getDirection() {
     return direction;
   }
 
   private boolean isValidSpaceToMoveTo(int r, int c) {
-    if (r < 0 || c < 0 || r >= worldMap.terrainMap.length || c >= worldMap.terrainMap[r].length) {
+    if (!worldMap.isOnMap(r, c)) {
       return false;
     }
     if (!worldMap.hasEmptySpace(r, c)) {
       return false;
     }
-    if (this instanceof Traits.Terrestrial && worldMap.terrainMap[r][c] == TerrainType.WATER) {
+    if (this instanceof Traits.Terrestrial && worldMap.getTerrainType(r, c) == TerrainType.WATER) {
       return false;
     }
     return true;
@@ -89,23 +139,100 @@ public abstract class Entity {
         }
         break;
     }
-    curR += dr;
-    curC += dc;
+    if (worldMap.isPlanningTick()) {
+      plannedDr += dr;
+      plannedDc += dc;
+    } else {
+      moveTo(curR + dr, curC + dc);
+    }
     // if entity already in square, then turn left/right
     if (needsToTurn) {
       turn();
     }
   }
 
+  private void moveTo(int r, int c) {
+    if (r == curR && c == curC) {
+      return;
+    }
+    int fromR = curR;
+    int fromC = curC;
+    curR = r;
+    curC = c;
+    worldMap.onEntityMoved(this, fromR, fromC);
+  }
+
+  /**
+   * Records the state other entities read while a parallel tick plans, so they see it as it was at
+   * the start of the tick rather than racing with this entity's own {@link #update()}. Called once
+   * for every due entity before any of them plans.
+   */
+  public void snapshotForPlanning() {
+  }
+
+  /**
+   * Applies what was planned by {@link #update()} during a parallel tick. Called once per entity,
+   * in entity order, after every entity has planned. A planned move is dropped, and the entity
+   * turns, if the target was taken by an entity that committed earlier.
+   */
+  public void commitPlannedUpdate() {
+    if (changedWhilePlanning) {
+      changedWhilePlanning = false;
+      worldMap.markTileChanged(curR, curC);
+    }
+    if (plannedDr == 0 && plannedDc == 0) {
+      return;
+    }
+    int targetR = curR + plannedDr;
+    int targetC = curC + plannedDc;
+    plannedDr = 0;
+    plannedDc = 0;
+    if (isValidSpaceToMoveTo(targetR, targetC)) {
+      moveTo(targetR, targetC);
+    } else {
+      turn();
+    }
+  }
+
   public void turn() {
-    direction += 2 * ((int) (Math.random() + 0.5)) - 1; // -1 or 1
+    direction += random.nextBoolean() ? 1 : -1;
     direction = (direction + 4) % 4;
+    markChanged();
+  }
+
+  /**
+   * Faces the entity {@param direction}, as returned by {@link #getDirection()}.
+   */
+  protected void setDirection(int direction) {
+    if (this.direction != direction) {
+      this.direction = direction;
+      markChanged();
+    }
+  }
+
+  /**
+   * Lets the map know the entity may look different, see {@link WorldMap#markTileChanged}.
+   */
+  protected void markChanged() {
+    if (worldMap.isPlanningTick()) {
+      changedWhilePlanning = true;
+    } else {
+      worldMap.markTileChanged(curR, curC);
+    }
   }
 
   public int getAge() {
     return age;
   }
 
+  /**
+   * Sets the age of an entity that is not on a map yet, e.g. one standing in for an aggregate
+   * population.
+   */
+  protected void setAge(int age) {
+    this.age = age;
+  }
+
   public int getHealth() {
     return health;
   }
@@ -114,6 +241,14 @@ public abstract class Entity {
     return worldMap;
   }
 
+  /**
+   * @return the entity's own random stream. Derive streams for entities it creates with
+   * {@link RandomStream#split()}.
+   */
+  protected RandomStream getRandom() {
+    return random;
+  }
+
   public GrowthStage getGrowthStage() {
     return growthStage;
   }
@@ -122,14 +257,116 @@ public abstract class Entity {
     growthStage = stage;
   }
 
+  protected int getLifeUpdateCounter() {
+    catchUp();
+    return lifeUpdateCounter;
+  }
+
   protected void incrementHealth(int dh) {
     health += dh;
   }
 
   public abstract void draw(Graphics g, Rect2d drawRegion);
 
+  /**
+   * @return a value identifying what {@link #draw} paints, so renderers can reuse the drawing for
+   * every entity of the same class with the same key. {@link #NO_SPRITE_KEY} if the drawing has to
+   * be redone every time.
+   */
+  public int getSpriteKey() {
+    return NO_SPRITE_KEY;
+  }
+
+  /**
+   * Writes everything needed to resume this entity later, see {@link #readState(DataInput)}.
+   * Subclasses with state of their own must extend both methods.
+   */
+  public void writeState(DataOutput out) throws IOException {
+    catchUp();
+    out.writeInt(curR);
+    out.writeInt(curC);
+    out.writeByte(direction);
+    out.writeInt(age);
+    out.writeInt(health);
+    out.writeByte(growthStage.ordinal());
+    out.writeByte(lifeUpdateCounter);
+    out.writeInt(ticksSinceDeath);
+    random.writeState(out);
+  }
+
+  /**
+   * Restores state written by {@link #writeState(DataOutput)}. Only valid before the entity has
+   * been added to its map.
+   */
+  public void readState(DataInput in) throws IOException {
+    curR = in.readInt();
+    curC = in.readInt();
+    direction = in.readByte();
+    age = in.readInt();
+    health = in.readInt();
+    growthStage = GrowthStage.values()[in.readByte()];
+    lifeUpdateCounter = in.readByte();
+    ticksSinceDeath = in.readInt();
+    random.readState(in);
+  }
+
+  /**
+   * @return number of updates since the entity died, 0 while alive.
+   */
+  public int getTicksSinceDeath() {
+    catchUp();
+    return ticksSinceDeath;
+  }
+
+  /**
+   * @return in how many ticks, at least 1, {@link #update()} next has more to do than count the
+   * tick. The map only updates the entity then, the ticks in between are counted by
+   * {@link #skipTicks(int)} when the entity is next updated or its counts are read.
+   * <p>
+   * By default living entities are updated every tick, override this if {@link #move()} does not
+   * act every tick. Corpses are only updated when they are due to be reclaimed.
+   */
+  public int getTicksUntilUpdate() {
+    if (health <= 0) {
+      return Math.max(1, worldMap.getCorpseDecayTicks() - ticksSinceDeath);
+    }
+    return 1;
+  }
+
+  /**
+   * @return in how many ticks the next life update (aging, growth, reproduction) is.
+   */
+  protected int getTicksUntilLifeUpdate() {
+    return MOVES_PER_AGE - lifeUpdateCounter;
+  }
+
+  /**
+   * Does what {@link #update()} would have done for {@param ticks} ticks in which it would have
+   * done nothing else, as allowed by {@link #getTicksUntilUpdate()}. Subclasses counting ticks of
+   * their own must extend this.
+   */
+  protected void skipTicks(int ticks) {
+    if (health <= 0) {
+      ticksSinceDeath += ticks;
+    } else {
+      lifeUpdateCounter += ticks;
+    }
+  }
+
+  // Counts the ticks the map skipped this entity in, up to the current tick.
+  private void catchUp() {
+    long skipped = worldMap.getTick() - syncedTick;
+    if (skipped > 0) {
+      syncedTick += skipped;
+      skipTicks((int) skipped);
+    }
+  }
+
   public void update() {
+    catchUp();
+    syncedTick++;
     if (getHealth() <= 0) {
+      ticksSinceDeath++;
       return;
     }
     if (++lifeUpdateCounter < MOVES_PER_AGE) {
@@ -139,11 +376,17 @@ public abstract class Entity {
     move();
     lifeUpdateCounter = 0;
     age++;
+    // age, health and growth stage may all change below
+    markChanged();
     updateGrowthStage();
     incurCostOfLiving();
 
     if (getHealth() <= 0) {
       setGrowthStage(GrowthStage.DEAD);
+      WorldMetrics metrics = worldMap.getMetrics();
+      if (metrics != null) {
+        metrics.recordDeath();
+      }
       return;
     }
 
@@ -0,0 +1,79 @@
+package entity.api;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Array backed, unordered list of entities. Each entity remembers its index, so removal is O(1) by
+ * moving the last entity into the freed slot.
+ * <p>
+ * An entity can be in at most one list at a time.
+ */
+public class EntityList implements Iterable<Entity> {
+  private Entity[] entities = new Entity[16];
+  private int size;
+
+  public void add(Entity entity) {
+    if (size == entities.length) {
+      entities = Arrays.copyOf(entities, 2 * size);
+    }
+    entity.listIndex = size;
+    entities[size++] = entity;
+  }
+
+  /**
+   * @return if the entity was in the list.
+   */
+  public boolean remove(Entity entity) {
+    int index = entity.listIndex;
+    if (index < 0 || index >= size || entities[index] != entity) {
+      return false;
+    }
+    Entity last = entities[--size];
+    entities[index] = last;
+    last.listIndex = index;
+    entities[size] = null;
+    entity.listIndex = -1;
+    return true;
+  }
+
+  public boolean contains(Entity entity) {
+    return entity.listIndex >= 0 && entity.listIndex < size && entities[entity.listIndex] == entity;
+  }
+
+  public Entity get(int index) {
+    if (index >= size) {
+      throw new IndexOutOfBoundsException(index);
+    }
+    return entities[index];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public Entity[] toArray() {
+    return Arrays.copyOf(entities, size);
+  }
+
+  @Override
+  public Iterator<Entity> iterator() {
+    return new Iterator<Entity>() {
+      private int next;
+
+      @Override
+      public boolean hasNext() {
+        return next < size;
+      }
+
+      @Override
+      public Entity next() {
+        if (next >= size) {
+          throw new NoSuchElementException();
+        }
+        return entities[next++];
+      }
+    };
+  }
+}
@@ -0,0 +1,198 @@
+package entity.api;
+
+import java.util.Arrays;
+
+/**
+ * Hierarchical timing wheel of the tick each entity next has work due, see
+ * {@link Entity#getTicksUntilUpdate()}. Scheduling is O(1) and collecting a tick's entities costs
+ * in proportion to the entities due, however many are waiting.
+ * <p>
+ * Level 0 has a slot per tick for the next {@link #SLOTS} ticks, each level above a slot per
+ * {@link #SLOTS} slots of the level below, and entries move down a level as their time comes
+ * closer. An entity is due at one tick at a time; scheduling it again, or removing it, leaves its
+ * old entry behind to be dropped when reached.
+ */
+public class EntityScheduler {
+  private static final int SLOT_BITS = 6;
+  private static final int SLOTS = 1 << SLOT_BITS;
+  private static final int LEVELS = 4;
+
+  private final Slot[][] wheels = new Slot[LEVELS][SLOTS];
+  // entries further out than the top level can reach
+  private final Slot overflow = new Slot();
+  // next tick to be collected
+  private long now;
+
+  // Due entities by list index, to hand them out in list order without sorting
+  private Entity[] dueByIndex = new Entity[64];
+  private long[] dueIndices = new long[1];
+
+  public EntityScheduler(long tick) {
+    for (Slot[] wheel : wheels) {
+      for (int i = 0; i < SLOTS; i++) {
+        wheel[i] = new Slot();
+      }
+    }
+    now = tick;
+  }
+
+  /**
+   * Drops every entry and continues from {@param tick}.
+   */
+  public void reset(long tick) {
+    for (Slot[] wheel : wheels) {
+      for (Slot slot : wheel) {
+        slot.clear();
+      }
+    }
+    overflow.clear();
+    now = tick;
+  }
+
+  /**
+   * Makes a newly placed {@param entity} due at the next tick collected, with its updates counted
+   * as current up to there.
+   */
+  public void add(Entity entity) {
+    entity.syncedTick = now;
+    entity.dueTick = now;
+    place(entity);
+  }
+
+  /**
+   * Makes {@param entity} due at {@param tick} instead of whenever it was due, or at the next tick
+   * collected if that is later.
+   */
+  public void schedule(Entity entity, long tick) {
+    tick = Math.max(tick, now);
+    if (entity.dueTick == tick) {
+      return;
+    }
+    entity.dueTick = tick;
+    place(entity);
+  }
+
+  /**
+   * Makes {@param entity} due at {@param tick} unless it is already due before then.
+   */
+  public void wake(Entity entity, long tick) {
+    if (entity.dueTick < 0 || entity.dueTick > tick) {
+      schedule(entity, tick);
+    }
+  }
+
+  public void remove(Entity entity) {
+    entity.dueTick = -1;
+  }
+
+  /**
+   * Advances the wheel past {@param tick}, which must be the next tick to collect.
+   *
+   * @return the entities due at {@param tick}, in {@link EntityList} order. They are no longer
+   * scheduled.
+   */
+  public Entity[] collectDue(long tick) {
+    if (tick != now) {
+      throw new IllegalStateException("Expected tick " + now + ", got " + tick);
+    }
+    cascade();
+    Slot slot = wheels[0][(int) (now & (SLOTS - 1))];
+    int count = 0;
+    int maxIndex = -1;
+    for (int i = 0; i < slot.size; i++) {
+      Entity e = slot.entities[i];
+      // skip entries left behind by rescheduling, and duplicates of an entity already taken
+      if (e.dueTick == now) {
+        e.dueTick = -1;
+        markDue(e);
+        maxIndex = Math.max(maxIndex, e.listIndex);
+        count++;
+      }
+    }
+    slot.clear();
+    now++;
+
+    Entity[] due = new Entity[count];
+    int next = 0;
+    for (int word = 0; word <= maxIndex >> 6; word++) {
+      long bits = dueIndices[word];
+      dueIndices[word] = 0;
+      while (bits != 0) {
+        int index = word << 6 | Long.numberOfTrailingZeros(bits);
+        bits &= bits - 1;
+        due[next++] = dueByIndex[index];
+        dueByIndex[index] = null;
+      }
+    }
+    return due;
+  }
+
+  private void markDue(Entity entity) {
+    int index = entity.listIndex;
+    if (index >= dueByIndex.length) {
+      dueByIndex = Arrays.copyOf(dueByIndex, Math.max(2 * dueByIndex.length, index + 1));
+      dueIndices = Arrays.copyOf(dueIndices, (dueByIndex.length + 63) >> 6);
+    }
+    dueByIndex[index] = entity;
+    dueIndices[index >> 6] |= 1L << index;
+  }
+
+  // Moves the entries of the slots that now start down to the levels below.
+  private void cascade() {
+    if (now == 0) {
+      return;
+    }
+    int top = 0;
+    while (top < LEVELS && (now & ((1L << (SLOT_BITS * (top + 1))) - 1)) == 0) {
+      top++;
+    }
+    if (top == LEVELS) {
+      overflow.moveTo(this);
+    }
+    for (int level = Math.min(top, LEVELS - 1); level >= 1; level--) {
+      wheels[level][(int) ((now >> (SLOT_BITS * level)) & (SLOTS - 1))].moveTo(this);
+    }
+  }
+
+  private void place(Entity entity) {
+    long tick = entity.dueTick;
+    for (int level = 0; level < LEVELS; level++) {
+      int shift = SLOT_BITS * (level + 1);
+      if (tick >> shift == now >> shift) {
+        wheels[level][(int) ((tick >> (shift - SLOT_BITS)) & (SLOTS - 1))].add(entity);
+        return;
+      }
+    }
+    overflow.add(entity);
+  }
+
+  private static class Slot {
+    private Entity[] entities = new Entity[4];
+    private int size;
+
+    void add(Entity entity) {
+      if (size == entities.length) {
+        entities = Arrays.copyOf(entities, 2 * size);
+      }
+      entities[size++] = entity;
+    }
+
+    void moveTo(EntityScheduler scheduler) {
+      int n = size;
+      Entity[] moved = entities;
+      entities = new Entity[4];
+      size = 0;
+      for (int i = 0; i < n; i++) {
+        // entries left behind by rescheduling are dropped on the way
+        if (moved[i].dueTick >= scheduler.now) {
+          scheduler.place(moved[i]);
+        }
+      }
+    }
+
+    void clear() {
+      Arrays.fill(entities, 0, size, null);
+      size = 0;
+    }
+  }
+}
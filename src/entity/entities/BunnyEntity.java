@@ -4,23 +4,59 @@ import entity.api.Entity;
 import entity.api.Goal;
 import entity.api.GrowthStage;
 import entity.api.Traits;
+import util.RandomStream;
 import util.Rect2d;
-import util.Vec2d;
+import util.WorldUtil;
 import world.WorldMap;
 
 import java.awt.*;
-import java.util.LinkedList;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
 public class BunnyEntity extends Entity implements Traits.Terrestrial, Traits.SpaceOccupying {
 
-  private final int MATING_COOLDOWN = 3;
+  static final int STARTING_HEALTH = 20;
+  static final int MATURE_AGE = 10;
+  // an idle bunny moves once every this many ticks
+  private static final int IDLE_TICKS_PER_MOVE = 5;
+  // a bunny goes looking for water once this many life updates passed since it last drank
+  private static final int THIRST_LIMIT = 5;
+  // health each parent pays for a baby
+  static final int SPAWN_COST = 5;
 
   private Goal currentGoal = Goal.NONE;
   private int idleCounter;
   private int lastMateAge;
+  // life updates since the bunny last drank
+  private int thirst;
+
+  // Whether the bunny was waiting to mate at the start of a parallel tick, and which tick, see
+  // snapshotForPlanning()
+  private boolean waitingToMateAtTickStart;
+  private long snapshotTick = -1;
+
+  // Mating planned during a parallel tick, see commitPlannedUpdate()
+  private BunnyEntity plannedMate;
+  private int plannedSpawnPoint;
 
   public BunnyEntity(WorldMap worldMap, int initR, int initC) {
-    super(worldMap, initR, initC, 20);
+    super(worldMap, initR, initC, STARTING_HEALTH);
+  }
+
+  public BunnyEntity(WorldMap worldMap, int initR, int initC, RandomStream random) {
+    super(worldMap, initR, initC, STARTING_HEALTH, random);
+  }
+
+  /**
+   * Creates a bunny of {@param age} life updates, as healthy as a newborn and not thirsty.
+   */
+  BunnyEntity(WorldMap worldMap, int initR, int initC, RandomStream random, int age) {
+    this(worldMap, initR, initC, random);
+    setAge(age);
+    // on cooldown, so that a whole population of them does not mate at once
+    lastMateAge = age;
+    updateGrowthStage();
   }
 
   @Override
@@ -55,9 +91,35 @@ public class BunnyEntity extends Entity implements Traits.Terrestrial, Traits.Sp
     }
   }
 
+  @Override
+  public int getSpriteKey() {
+    // what draw() depends on: growth stage, mating goal and orientation
+    return getGrowthStage().ordinal()
+           | (currentGoal == Goal.MATE ? 1 : 0) << 2
+           | (getDirection() % 2) << 3;
+  }
+
+  @Override
+  public void writeState(DataOutput out) throws IOException {
+    super.writeState(out);
+    out.writeByte(currentGoal.ordinal());
+    out.writeByte(idleCounter);
+    out.writeInt(lastMateAge);
+    out.writeByte(thirst);
+  }
+
+  @Override
+  public void readState(DataInput in) throws IOException {
+    super.readState(in);
+    currentGoal = Goal.values()[in.readByte()];
+    idleCounter = in.readByte();
+    lastMateAge = in.readInt();
+    thirst = in.readByte();
+  }
+
   @Override
   public void updateGrowthStage() {
-    if (getAge() > 10 && getGrowthStage() != GrowthStage.MATURE) {
+    if (getAge() > MATURE_AGE && getGrowthStage() != GrowthStage.MATURE) {
       setGrowthStage(GrowthStage.MATURE);
     }
   }
@@ -66,6 +128,14 @@ public class BunnyEntity extends Entity implements Traits.Terrestrial, Traits.Sp
   public void incurCostOfLiving() {
     // add later when implementing food
     //    incrementHealth(-1);
+    // thirst only sends the bunny looking for water, so it stops counting there
+    if (thirst < THIRST_LIMIT) {
+      thirst++;
+    }
+    // a bunny looking for a mate keeps looking, and goes for a drink once done
+    if (thirst >= THIRST_LIMIT && currentGoal == Goal.NONE) {
+      currentGoal = Goal.DRINK;
+    }
   }
 
   @Override
@@ -74,50 +144,110 @@ public class BunnyEntity extends Entity implements Traits.Terrestrial, Traits.Sp
       return;
     }
 
-    LinkedList<Vec2d> possibleSpawnPoints = getWorldMap().getPossibleSpawnPoints(this);
-    if (possibleSpawnPoints.isEmpty()) {
+    int spawnPointCount = getWorldMap().getPossibleSpawnPointCount(this);
+    if (spawnPointCount == 0) {
       return;
     }
 
-    for (int dr = -1; dr <= 1; dr++) {
-      for (int dc = -1; dc <= 1; dc++) {
-        if (dr == 0 && dc == 0) {
-          continue;
-        }
-        LinkedList<Entity> entities =
-            getWorldMap().getEntitiesAtPosition(getCurR() + dr, getCurC() + dc);
-        for (Entity e : entities) {
-          if (e instanceof BunnyEntity) {
-            BunnyEntity potentialMate = (BunnyEntity) e;
-            if (potentialMate.canMate() && potentialMate.currentGoal == Goal.MATE) {
-              // add baby bunny
-              Vec2d spawnPoint = possibleSpawnPoints.get(
-                  (int) (Math.random() * possibleSpawnPoints.size()));
-              getWorldMap().addEntity(
-                  new BunnyEntity(getWorldMap(), spawnPoint.x, spawnPoint.y), true /* isNewborn */);
-              // incur spawn cost
-              incrementHealth(-5);
-              potentialMate.incrementHealth(-5);
-
-              // reset
-              potentialMate.lastMateAge = potentialMate.getAge();
-              lastMateAge = getAge();
-              potentialMate.currentGoal = Goal.NONE;
-              currentGoal = Goal.NONE;
-            }
+    for (int i = 0; i < WorldUtil.ADJACENT_OFFSETS.length; i += 2) {
+      Entity e = getWorldMap().getOccupyingEntityAt(
+          getCurR() + WorldUtil.ADJACENT_OFFSETS[i], getCurC() + WorldUtil.ADJACENT_OFFSETS[i + 1]);
+      if (e instanceof BunnyEntity) {
+        BunnyEntity potentialMate = (BunnyEntity) e;
+        if (potentialMate.isWaitingToMate()) {
+          int spawnPoint = getWorldMap().getPossibleSpawnPoint(
+              this, getRandom().nextInt(spawnPointCount));
+          if (getWorldMap().isPlanningTick()) {
+            // the mate belongs to another entity's update, defer to commitPlannedUpdate()
+            plannedMate = potentialMate;
+            plannedSpawnPoint = spawnPoint;
+            return;
           }
+          mateWith(potentialMate, spawnPoint);
         }
-
       }
     }
   }
 
+  @Override
+  public void snapshotForPlanning() {
+    waitingToMateAtTickStart = canMate() && currentGoal == Goal.MATE;
+    snapshotTick = getWorldMap().getTick();
+  }
+
+  // Other bunnies planning in parallel read this from the snapshot, the bunny's own update may be
+  // changing its goal, age and health at the same time. Bunnies not due this tick are not updated,
+  // so their own state is as good.
+  private boolean isWaitingToMate() {
+    WorldMap map = getWorldMap();
+    if (map.isPlanningTick() && snapshotTick == map.getTick()) {
+      return waitingToMateAtTickStart;
+    }
+    return canMate() && currentGoal == Goal.MATE;
+  }
+
+  @Override
+  public void commitPlannedUpdate() {
+    super.commitPlannedUpdate();
+    if (plannedMate == null) {
+      return;
+    }
+    BunnyEntity potentialMate = plannedMate;
+    plannedMate = null;
+    // either bunny may have mated with someone else earlier in the commit phase
+    if (currentGoal == Goal.MATE && potentialMate.isWaitingToMate()) {
+      mateWith(potentialMate, plannedSpawnPoint);
+    }
+  }
+
+  /**
+   * @param spawnPoint tile of the baby, as r * map height + c.
+   */
+  private void mateWith(BunnyEntity mate, int spawnPoint) {
+    // add baby bunny
+    int height = getWorldMap().getHeight();
+    getWorldMap().addEntity(
+        new BunnyEntity(getWorldMap(), spawnPoint / height, spawnPoint % height,
+                        getRandom().split()),
+        true /* isNewborn */);
+    // incur spawn cost
+    incrementHealth(-SPAWN_COST);
+    mate.incrementHealth(-SPAWN_COST);
+
+    // reset
+    mate.lastMateAge = mate.getAge();
+    lastMateAge = getAge();
+    mate.currentGoal = Goal.NONE;
+    currentGoal = Goal.NONE;
+    mate.markChanged();
+    markChanged();
+  }
+
+  @Override
+  public int getTicksUntilUpdate() {
+    if (getHealth() <= 0 || currentGoal != Goal.NONE) {
+      return super.getTicksUntilUpdate();
+    }
+    return Math.min(IDLE_TICKS_PER_MOVE - idleCounter, getTicksUntilLifeUpdate());
+  }
+
+  @Override
+  protected void skipTicks(int ticks) {
+    super.skipTicks(ticks);
+    if (getHealth() > 0 && currentGoal == Goal.NONE) {
+      idleCounter += ticks;
+    }
+  }
+
   @Override
   public void move() {
     switch (currentGoal) {
       case NONE:
         handleIdleState();
         break;
+      case DRINK:
+        findWater();
+        break;
       case MATE:
         findMate();
         break;
@@ -126,28 +256,45 @@ public class BunnyEntity extends Entity implements Traits.Terrestrial, Traits.Sp
 
   private void handleIdleState() {
     // todo: changes goals by using threshold from DNA
-    if (++idleCounter < 5) {
+    if (++idleCounter < IDLE_TICKS_PER_MOVE) {
       return;
     }
     idleCounter = 0;
     moveInDirection(1);
 
-    if (Math.random() < 0.2) {
+    if (getRandom().nextDouble() < 0.2) {
       turn();
     }
 
-    if (canMate() && Math.random() < 0.2) {
+    if (canMate() && getRandom().nextDouble() < 0.2) {
       currentGoal = Goal.MATE;
+      markChanged();
     }
   }
 
   private boolean canMate() {
     return getGrowthStage() == GrowthStage.MATURE
-           && getAge() - lastMateAge >= MATING_COOLDOWN
+           && getAge() - lastMateAge >= getWorldMap().getConfig().getMatingCooldown()
            && getHealth() > 5;
   }
 
   private void findMate() {
     moveInDirection(1);
   }
+
+  private void findWater() {
+    WorldMap map = getWorldMap();
+    if (map.isNextToWater(getCurR(), getCurC())) {
+      thirst = 0;
+      currentGoal = Goal.NONE;
+      markChanged();
+      return;
+    }
+    // heads down the map's shared distance field, or wanders where no water can be reached
+    int direction = map.getDirectionToWater(getCurR(), getCurC());
+    if (direction >= 0) {
+      setDirection(direction);
+    }
+    moveInDirection(1);
+  }
 }
@@ -2,68 +2,113 @@ package entity.entities;
 
 import entity.api.Entity;
 import entity.api.GrowthStage;
-import entity.api.Traits;
 import util.ColorUtil;
+import util.Gradient;
+import util.RandomStream;
 import util.Rect2d;
-import util.Vec2d;
 import util.WorldUtil;
 import world.TerrainType;
 import world.WorldMap;
 
 import java.awt.*;
-import java.util.LinkedList;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
 public class PlantEntity extends Entity {
-  private final int germinationCooldown;
+  static final int STARTING_HEALTH = 20;
+  static final int MATURE_AGE = 10;
+  static final int ROOT_DEPTH = 2;
+
+  // Tiles a plant spreads seeds to, as (dr, dc) pairs shared by all plants.
+  static final int[] NEARBY_OFFSETS = WorldUtil.nearbyOffsets(3);
 
-  private final LinkedList<Vec2d> possibleTilesWithWater;
-  private final LinkedList<Vec2d> possibleTilesForSpawn;
+  // Plant color in growth is white --> green, by age up to maturity. Health trends it to yellow
+  // then red.
+  private static final Gradient[] YOUTH_COLORS = buildYouthColors();
+  private static final Gradient MATURE_COLORS = Gradient.define(
+      "plant.mature", Gradient.DEFAULT_STEPS, Color.GREEN, Color.YELLOW, Color.RED);
+
+  private final int germinationCooldown;
   private final int plantRootDepth;
 
   private int lastTimeGerminated;
   private float seedPercentage;
 
   public PlantEntity(WorldMap worldMap, int initR, int initC) {
-    super(worldMap, initR, initC, 20);
-    plantRootDepth = 2;
-    germinationCooldown = 5;
+    super(worldMap, initR, initC, STARTING_HEALTH);
+    plantRootDepth = ROOT_DEPTH;
+    germinationCooldown = worldMap.getConfig().getGerminationCooldown();
+  }
 
-    possibleTilesWithWater = WorldUtil.getValidNearbySquares(worldMap, initR, initC, 3);
-    possibleTilesForSpawn = WorldUtil.getValidNearbySquares(
-        worldMap,
-        initR,
-        initC,
-        3);
+  public PlantEntity(WorldMap worldMap, int initR, int initC, RandomStream random) {
+    super(worldMap, initR, initC, STARTING_HEALTH, random);
+    plantRootDepth = ROOT_DEPTH;
+    germinationCooldown = worldMap.getConfig().getGerminationCooldown();
+  }
+
+  /**
+   * Creates a plant of {@param age} life updates, as healthy as one that grew up with water
+   * nearby.
+   */
+  PlantEntity(WorldMap worldMap, int initR, int initC, RandomStream random, int age) {
+    this(worldMap, initR, initC, random);
+    setAge(age);
+    lastTimeGerminated = age;
+    incrementHealth(healthIncrementFor(GrowthStage.YOUTH) * Math.min(age, MATURE_AGE));
+    if (age > MATURE_AGE) {
+      setGrowthStage(GrowthStage.MATURE);
+    }
   }
 
   @Override
   public void draw(Graphics g, Rect2d drawRegion) {
-    // Plant color in growth is white --> green
-    // Plant health trends color to yellow then red.
-    switch (getGrowthStage()) {
+    draw(g, drawRegion, getGrowthStage(), getAge(), getHealth());
+  }
+
+  @Override
+  public int getSpriteKey() {
+    return spriteKey(getGrowthStage(), getAge(), getHealth());
+  }
+
+  /**
+   * @return the sprite key of a plant drawn by {@link #draw(Graphics, Rect2d, GrowthStage, int,
+   * int)} with these arguments, see {@link Entity#getSpriteKey()}.
+   */
+  static int spriteKey(GrowthStage stage, int age, int health) {
+    int keyAge = 0;
+    int keyHealth = 0;
+    switch (stage) {
+      case YOUTH:
+        keyAge = age;
+        keyHealth = Math.min(health, age * healthIncrementFor(GrowthStage.YOUTH));
+        break;
+      case MATURE:
+        keyHealth = Math.min(health, MATURE_AGE * healthIncrementFor(GrowthStage.YOUTH));
+        break;
+    }
+    if (keyAge < 0 || keyAge >= 1 << 12 || keyHealth < -(1 << 15) || keyHealth >= 1 << 15) {
+      return NO_SPRITE_KEY;
+    }
+    return stage.ordinal() | keyAge << 2 | (keyHealth + (1 << 15)) << 14;
+  }
+
+  static void draw(Graphics g, Rect2d drawRegion, GrowthStage stage, int age, int health) {
+    switch (stage) {
       case DEAD:
         g.setColor(Color.ORANGE);
         g.fillOval(drawRegion.x, drawRegion.y, drawRegion.width, drawRegion.height);
         break;
       case YOUTH:
-        int minYouthHealth = getAge() * getHealthIncrementForStage(GrowthStage.YOUTH);
-        float healthP = 1 - (1f * Math.min(getHealth(), minYouthHealth) / minYouthHealth);
-        g.setColor(
-            ColorUtil.interpolate(
-                ColorUtil.interpolate(
-                    Color.WHITE,
-                    Color.GREEN,
-                    1f * getAge() / getAgeTo(GrowthStage.MATURE)),
-                Color.YELLOW,
-                Color.RED,
-                healthP));
+        int minYouthHealth = age * healthIncrementFor(GrowthStage.YOUTH);
+        float healthP = 1 - (1f * Math.min(health, minYouthHealth) / minYouthHealth);
+        g.setColor(YOUTH_COLORS[Math.max(0, Math.min(age, MATURE_AGE))].colorAt(healthP));
         g.fillOval(drawRegion.x, drawRegion.y, drawRegion.width, drawRegion.height);
         break;
       case MATURE:
-        int minMatureHealth =
-            getAgeTo(GrowthStage.MATURE) * getHealthIncrementForStage(GrowthStage.YOUTH);
-        float pToDead = 1 - (1f * Math.min(getHealth(), minMatureHealth) / minMatureHealth);
-        g.setColor(ColorUtil.interpolate(Color.GREEN, Color.YELLOW, Color.RED, pToDead));
+        int minMatureHealth = MATURE_AGE * healthIncrementFor(GrowthStage.YOUTH);
+        float pToDead = 1 - (1f * Math.min(health, minMatureHealth) / minMatureHealth);
+        g.setColor(MATURE_COLORS.colorAt(pToDead));
         g.fillOval(drawRegion.x, drawRegion.y, drawRegion.width, drawRegion.height);
 
         // a "flower" is drawn when the plant is healthy enough
@@ -82,16 +127,34 @@ public class PlantEntity extends Entity {
     }
   }
 
+  @Override
+  public void writeState(DataOutput out) throws IOException {
+    super.writeState(out);
+    out.writeInt(lastTimeGerminated);
+    out.writeFloat(seedPercentage);
+  }
+
+  @Override
+  public void readState(DataInput in) throws IOException {
+    super.readState(in);
+    lastTimeGerminated = in.readInt();
+    seedPercentage = in.readFloat();
+  }
+
   protected int getAgeTo(GrowthStage stage) {
     switch (stage) {
       case MATURE:
-        return 10;
+        return MATURE_AGE;
       default:
         return 0;
     }
   }
 
   protected int getHealthIncrementForStage(GrowthStage stage) {
+    return healthIncrementFor(stage);
+  }
+
+  static int healthIncrementFor(GrowthStage stage) {
     switch (stage) {
       case YOUTH:
         return 2;
@@ -103,10 +166,10 @@ public class PlantEntity extends Entity {
   }
 
   public void updateGrowthStage() {
-    if (getAge() > 10 && getGrowthStage() != GrowthStage.MATURE) {
+    if (getAge() > MATURE_AGE && getGrowthStage() != GrowthStage.MATURE) {
       setGrowthStage(GrowthStage.MATURE);
     } else if (getGrowthStage() == GrowthStage.MATURE) {
-      seedPercentage += 0.5 * Math.random();
+      seedPercentage += 0.5 * getRandom().nextDouble();
     }
 
     // Only grow if you have a water source nearby.
@@ -134,6 +197,12 @@ public class PlantEntity extends Entity {
     // plants don't move :^)
   }
 
+  @Override
+  public int getTicksUntilUpdate() {
+    // nothing happens between life updates
+    return getHealth() > 0 ? getTicksUntilLifeUpdate() : super.getTicksUntilUpdate();
+  }
+
   private boolean shouldGerminate() {
     return getAge() >= lastTimeGerminated + germinationCooldown
            && seedPercentage > 1
@@ -148,18 +217,15 @@ public class PlantEntity extends Entity {
     WorldMap map = getWorldMap();
     while (seedPercentage > 1) {
       seedPercentage -= 1;
-      Vec2d coord = possibleTilesForSpawn.get(
-          (int) (possibleTilesForSpawn.size() * Math.random()));
-      if (map.terrainMap[coord.x][coord.y] == TerrainType.GROUND) {
-        boolean canAddToSpace = true;
-        for (Entity e : map.getEntitiesAtPosition(coord.x, coord.y)) {
-          if (!(e instanceof Traits.SpaceOccupying)) {
-            canAddToSpace = false;
-            break;
-          }
-        }
-        if (canAddToSpace) {
-          map.addEntity(new PlantEntity(map, coord.x, coord.y), true /* isNewborn */);
+      int tile = randomNearbyTile(map, getCurR(), getCurC(), getRandom());
+      if (tile < 0) {
+        continue;
+      }
+      int r = tile / map.getHeight();
+      int c = tile % map.getHeight();
+      if (map.getTerrainType(r, c) == TerrainType.GROUND) {
+        if (map.getNonOccupyingEntityAt(r, c) == null) {
+          map.addEntity(new PlantEntity(map, r, c, getRandom().split()), true /* isNewborn */);
           incrementHealth(-2);
         }
       }
@@ -167,17 +233,43 @@ public class PlantEntity extends Entity {
   }
 
   private boolean hasWaterNearby() {
-    WorldMap map = getWorldMap();
-    int elevationDifference;
-    int currentElevation = map.elevationMap[getCurR()][getCurC()];
-    for (Vec2d vec : possibleTilesWithWater) {
-      if (map.terrainMap[vec.x][vec.y] == TerrainType.WATER) {
-        elevationDifference = currentElevation - map.elevationMap[vec.x][vec.y];
-        if (elevationDifference <= plantRootDepth) {
-          return true;
-        }
-      }
+    return getWorldMap().hasWaterNearby(getCurR(), getCurC(), plantRootDepth);
+  }
+
+  /**
+   * Picks one of the neighborhood tiles that are on the map, uniformly at random.
+   *
+   * @return the tile as r * map height + c, or -1 if no neighbor is on the map.
+   */
+  static int randomNearbyTile(WorldMap map, int r, int c, RandomStream random) {
+    int validCount =
+        WorldUtil.countOnMap(NEARBY_OFFSETS, r, c, map.getWidth(), map.getHeight());
+    if (validCount == 0) {
+      return -1;
+    }
+    return WorldUtil.nthOnMap(
+        NEARBY_OFFSETS, r, c, map.getWidth(), map.getHeight(), random.nextInt(validCount));
+  }
+
+  private static Gradient[] buildYouthColors() {
+    Gradient[] colors = new Gradient[MATURE_AGE + 1];
+    for (int age = 0; age <= MATURE_AGE; age++) {
+      Color growth = ColorUtil.interpolate(Color.WHITE, Color.GREEN, 1f * age / MATURE_AGE);
+      colors[age] = Gradient.define(
+          "plant.youth." + age, Gradient.DEFAULT_STEPS, growth, Color.YELLOW, Color.RED);
     }
-    return false;
+    return colors;
+  }
+
+  int getLastTimeGerminated() {
+    return lastTimeGerminated;
+  }
+
+  float getSeedPercentage() {
+    return seedPercentage;
+  }
+
+  int getTicksSinceAgeIncrease() {
+    return getLifeUpdateCounter();
   }
 }
@@ -0,0 +1,373 @@
+package entity.entities;
+
+import entity.api.Entity;
+import entity.api.GrowthStage;
+import util.ChunkedTilePlane;
+import util.RandomStream;
+import util.Rect2d;
+import world.TerrainType;
+import world.WorldMap;
+import world.WorldMetrics;
+
+import java.awt.*;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compact storage for a map's plants: one row per plant spread over parallel primitive columns
+ * instead of one {@link PlantEntity} object each. Behaves like a population of plant entities, but
+ * the whole population is aged in a single loop by {@link #update()}.
+ * <p>
+ * Plants are placed by tile (r * map height + c). A tile holds at most one plant.
+ */
+public class PlantPopulation {
+  private static final int INITIAL_CAPACITY = 1024;
+  private static final GrowthStage[] STAGES = GrowthStage.values();
+
+  private final WorldMap mMap;
+  private final RandomStream mRandom;
+
+  // Row of the plant on each tile, -1 if the tile has no plant. Chunked, so stretches of the map
+  // that never had plants take no storage.
+  private ChunkedTilePlane mRowAtTile;
+
+  private int mSize;
+  private int[] mTile = new int[INITIAL_CAPACITY];
+  private int[] mAge = new int[INITIAL_CAPACITY];
+  private int[] mHealth = new int[INITIAL_CAPACITY];
+  private float[] mSeedPercentage = new float[INITIAL_CAPACITY];
+  private int[] mLastTimeGerminated = new int[INITIAL_CAPACITY];
+  private byte[] mLifeUpdateCounter = new byte[INITIAL_CAPACITY];
+  private byte[] mGrowthStage = new byte[INITIAL_CAPACITY];
+  private int[] mTicksSinceDeath = new int[INITIAL_CAPACITY];
+
+  // Tiles seeded during the current update, planted once the update is done
+  private int mSpawnCount;
+  private int[] mSpawnTiles = new int[INITIAL_CAPACITY];
+
+  public PlantPopulation(WorldMap map, RandomStream random) {
+    mMap = map;
+    mRandom = random;
+    mRowAtTile = new ChunkedTilePlane(
+        map.getWidth(), map.getHeight(), ChunkedTilePlane.Encoding.INT, -1);
+  }
+
+  /**
+   * Adds a new plant to the tile.
+   *
+   * @return if the plant was added, i.e. the tile had no plant yet.
+   */
+  public boolean add(int r, int c) {
+    return addRow(r * mMap.getHeight() + c, 1, PlantEntity.STARTING_HEALTH, 0, 0, 0,
+                  GrowthStage.YOUTH);
+  }
+
+  /**
+   * Moves the state of {@param plant} into the population. The caller is responsible for taking
+   * the plant entity off the map.
+   */
+  public boolean add(PlantEntity plant) {
+    return addRow(plant.getCurR() * mMap.getHeight() + plant.getCurC(),
+                  plant.getAge(),
+                  plant.getHealth(),
+                  plant.getSeedPercentage(),
+                  plant.getLastTimeGerminated(),
+                  plant.getTicksSinceAgeIncrease(),
+                  plant.getGrowthStage());
+  }
+
+  private boolean addRow(int tile, int age, int health, float seedPercentage,
+                         int lastTimeGerminated, int lifeUpdateCounter, GrowthStage stage) {
+    if (rowAt(tile) >= 0) {
+      return false;
+    }
+    if (mSize == mTile.length) {
+      grow();
+    }
+    int row = mSize++;
+    mTile[row] = tile;
+    mAge[row] = age;
+    mHealth[row] = health;
+    mSeedPercentage[row] = seedPercentage;
+    mLastTimeGerminated[row] = lastTimeGerminated;
+    mLifeUpdateCounter[row] = (byte) lifeUpdateCounter;
+    mGrowthStage[row] = (byte) stage.ordinal();
+    mTicksSinceDeath[row] = 0;
+    setRowAt(tile, row);
+    mMap.markTileChanged(tile / mMap.getHeight(), tile % mMap.getHeight());
+    return true;
+  }
+
+  private void grow() {
+    int capacity = 2 * mTile.length;
+    mTile = Arrays.copyOf(mTile, capacity);
+    mAge = Arrays.copyOf(mAge, capacity);
+    mHealth = Arrays.copyOf(mHealth, capacity);
+    mSeedPercentage = Arrays.copyOf(mSeedPercentage, capacity);
+    mLastTimeGerminated = Arrays.copyOf(mLastTimeGerminated, capacity);
+    mLifeUpdateCounter = Arrays.copyOf(mLifeUpdateCounter, capacity);
+    mGrowthStage = Arrays.copyOf(mGrowthStage, capacity);
+    mTicksSinceDeath = Arrays.copyOf(mTicksSinceDeath, capacity);
+  }
+
+  /**
+   * Removes the plants that have been dead for at least {@param corpseDecayTicks} updates.
+   */
+  public void reclaimCorpses(int corpseDecayTicks) {
+    for (int i = mSize - 1; i >= 0; i--) {
+      if (mHealth[i] <= 0 && mTicksSinceDeath[i] >= corpseDecayTicks) {
+        removeRow(i);
+      }
+    }
+  }
+
+  /**
+   * Removes the plant on the tile, if any.
+   *
+   * @return the age of the removed plant, or -1 if the tile had no living plant.
+   */
+  public int remove(int r, int c) {
+    int row = mRowAtTile.get(r, c);
+    if (row < 0) {
+      return -1;
+    }
+    int age = mHealth[row] > 0 ? mAge[row] : -1;
+    removeRow(row);
+    return age;
+  }
+
+  // Frees the row by moving the last row into it.
+  private void removeRow(int row) {
+    setRowAt(mTile[row], -1);
+    mMap.markTileChanged(mTile[row] / mMap.getHeight(), mTile[row] % mMap.getHeight());
+    int last = --mSize;
+    if (row == last) {
+      return;
+    }
+    mTile[row] = mTile[last];
+    mAge[row] = mAge[last];
+    mHealth[row] = mHealth[last];
+    mSeedPercentage[row] = mSeedPercentage[last];
+    mLastTimeGerminated[row] = mLastTimeGerminated[last];
+    mLifeUpdateCounter[row] = mLifeUpdateCounter[last];
+    mGrowthStage[row] = mGrowthStage[last];
+    mTicksSinceDeath[row] = mTicksSinceDeath[last];
+    setRowAt(mTile[row], row);
+  }
+
+  private int rowAt(int tile) {
+    return mRowAtTile.get(tile / mMap.getHeight(), tile % mMap.getHeight());
+  }
+
+  private void setRowAt(int tile, int row) {
+    mRowAtTile.set(tile / mMap.getHeight(), tile % mMap.getHeight(), row);
+  }
+
+  /**
+   * @return a copy of this population for {@param map}, which must have the same dimensions.
+   */
+  public PlantPopulation copyFor(WorldMap map) {
+    PlantPopulation copy = new PlantPopulation(map, mRandom.copy());
+    copy.mSize = mSize;
+    copy.mTile = mTile.clone();
+    copy.mAge = mAge.clone();
+    copy.mHealth = mHealth.clone();
+    copy.mSeedPercentage = mSeedPercentage.clone();
+    copy.mLastTimeGerminated = mLastTimeGerminated.clone();
+    copy.mLifeUpdateCounter = mLifeUpdateCounter.clone();
+    copy.mGrowthStage = mGrowthStage.clone();
+    copy.mTicksSinceDeath = mTicksSinceDeath.clone();
+    copy.mRowAtTile = mRowAtTile.copy();
+    return copy;
+  }
+
+  /**
+   * Writes every plant, see {@link #readFrom(DataInput)}.
+   */
+  public void writeTo(DataOutput out) throws IOException {
+    mRandom.writeState(out);
+    out.writeInt(mSize);
+    for (int i = 0; i < mSize; i++) {
+      out.writeInt(mTile[i]);
+      out.writeInt(mAge[i]);
+      out.writeInt(mHealth[i]);
+      out.writeFloat(mSeedPercentage[i]);
+      out.writeInt(mLastTimeGerminated[i]);
+      out.writeByte(mLifeUpdateCounter[i]);
+      out.writeByte(mGrowthStage[i]);
+      out.writeInt(mTicksSinceDeath[i]);
+    }
+  }
+
+  /**
+   * Adds the plants written by {@link #writeTo(DataOutput)}.
+   */
+  public void readFrom(DataInput in) throws IOException {
+    mRandom.readState(in);
+    int size = in.readInt();
+    for (int i = 0; i < size; i++) {
+      int tile = in.readInt();
+      int age = in.readInt();
+      int health = in.readInt();
+      float seedPercentage = in.readFloat();
+      int lastTimeGerminated = in.readInt();
+      int lifeUpdateCounter = in.readByte();
+      GrowthStage stage = STAGES[in.readByte()];
+      if (addRow(tile, age, health, seedPercentage, lastTimeGerminated, lifeUpdateCounter, stage)) {
+        mTicksSinceDeath[mSize - 1] = in.readInt();
+      } else {
+        throw new IOException("Two plants on tile " + tile);
+      }
+    }
+  }
+
+  public boolean hasPlantAt(int r, int c) {
+    return mRowAtTile.get(r, c) >= 0;
+  }
+
+  /**
+   * @return the tile of the {@param index}th plant, as r * map height + c. Indices run from 0 to
+   * {@link #size()} and change as plants are reclaimed.
+   */
+  public int getTile(int index) {
+    return mTile[index];
+  }
+
+  public int size() {
+    return mSize;
+  }
+
+  public int getAliveCount() {
+    int alive = 0;
+    for (int i = 0; i < mSize; i++) {
+      if (mHealth[i] > 0) {
+        alive++;
+      }
+    }
+    return alive;
+  }
+
+  /**
+   * @return number of plants in each growth stage, indexed by {@link GrowthStage#ordinal()}.
+   */
+  public int[] countByStage() {
+    int[] counts = new int[STAGES.length];
+    for (int i = 0; i < mSize; i++) {
+      counts[mGrowthStage[i]]++;
+    }
+    return counts;
+  }
+
+  /**
+   * Same life cycle as {@link PlantEntity#update()}, for every plant in the population.
+   */
+  public void update() {
+    int height = mMap.getHeight();
+    int mature = GrowthStage.MATURE.ordinal();
+    int dead = GrowthStage.DEAD.ordinal();
+    WorldMetrics metrics = mMap.getMetrics();
+    int germinationCooldown = mMap.getConfig().getGerminationCooldown();
+    for (int i = 0; i < mSize; i++) {
+      if (mHealth[i] <= 0) {
+        mTicksSinceDeath[i]++;
+        continue;
+      }
+      if (++mLifeUpdateCounter[i] < Entity.MOVES_PER_AGE) {
+        continue;
+      }
+      mLifeUpdateCounter[i] = 0;
+      int age = ++mAge[i];
+      int r = mTile[i] / height;
+      int c = mTile[i] % height;
+      mMap.markTileChanged(r, c);
+
+      // growth stage
+      if (age > PlantEntity.MATURE_AGE && mGrowthStage[i] != mature) {
+        mGrowthStage[i] = (byte) mature;
+      } else if (mGrowthStage[i] == mature) {
+        mSeedPercentage[i] += 0.5 * mRandom.nextDouble();
+      }
+
+      // plants only grow with a water source nearby, and wither without one
+      if (mMap.hasWaterNearby(r, c, PlantEntity.ROOT_DEPTH)) {
+        mHealth[i] += PlantEntity.healthIncrementFor(STAGES[mGrowthStage[i]]);
+      } else {
+        mHealth[i]--;
+      }
+      if (mHealth[i] <= 0) {
+        mGrowthStage[i] = (byte) dead;
+        if (metrics != null) {
+          metrics.recordDeath();
+        }
+        continue;
+      }
+
+      // germination
+      if (age >= mLastTimeGerminated[i] + germinationCooldown
+          && mSeedPercentage[i] > 1
+          && mHealth[i] > 10) {
+        spread(i, r, c);
+      }
+    }
+    plantSpawns();
+  }
+
+  private void spread(int row, int r, int c) {
+    mLastTimeGerminated[row] = mAge[row];
+    while (mSeedPercentage[row] > 1) {
+      mSeedPercentage[row] -= 1;
+      int tile = PlantEntity.randomNearbyTile(mMap, r, c, mRandom);
+      if (tile >= 0 && isFreeGround(tile)) {
+        if (mSpawnCount == mSpawnTiles.length) {
+          mSpawnTiles = Arrays.copyOf(mSpawnTiles, 2 * mSpawnCount);
+        }
+        mSpawnTiles[mSpawnCount++] = tile;
+        mHealth[row] -= 2;
+      }
+    }
+  }
+
+  private void plantSpawns() {
+    WorldMetrics metrics = mMap.getMetrics();
+    for (int i = 0; i < mSpawnCount; i++) {
+      int tile = mSpawnTiles[i];
+      // an earlier spawn this update may have taken the tile already
+      if (isFreeGround(tile) && add(tile / mMap.getHeight(), tile % mMap.getHeight())
+          && metrics != null) {
+        metrics.recordGermination();
+      }
+    }
+    mSpawnCount = 0;
+  }
+
+  private boolean isFreeGround(int tile) {
+    int r = tile / mMap.getHeight();
+    int c = tile % mMap.getHeight();
+    return mMap.getTerrainType(r, c) == TerrainType.GROUND
+           && mRowAtTile.get(r, c) < 0
+           && mMap.getNonOccupyingEntityAt(r, c) == null
+           && !mMap.isAggregated(r, c);
+  }
+
+  /**
+   * @return the {@link Entity#getSpriteKey() sprite key} of the plant on the tile, which looks the
+   * same as a {@link PlantEntity} with that key.
+   */
+  public int getSpriteKey(int r, int c) {
+    int row = mRowAtTile.get(r, c);
+    return row < 0 ? Entity.NO_SPRITE_KEY
+                   : PlantEntity.spriteKey(STAGES[mGrowthStage[row]], mAge[row], mHealth[row]);
+  }
+
+  /**
+   * Draws the plant on the tile, if there is one.
+   */
+  public void draw(Graphics g, Rect2d drawRegion, int r, int c) {
+    int row = mRowAtTile.get(r, c);
+    if (row >= 0) {
+      PlantEntity.draw(g, drawRegion, STAGES[mGrowthStage[row]], mAge[row], mHealth[row]);
+    }
+  }
+}
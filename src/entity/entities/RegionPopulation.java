@@ -0,0 +1,376 @@
+package entity.entities;
+
+import entity.api.Entity;
+import entity.api.GrowthStage;
+import util.RandomStream;
+import world.TerrainType;
+import world.WorldMap;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The plants and bunnies of a rectangular region of the map kept as counts by age instead of as
+ * entities, for regions simulated at a low level of detail. {@link #update()} advances the counts
+ * by a life update with rate equations for what the entities would do on average, and
+ * {@link #materialize()} turns them back into entities spread over the region.
+ * <p>
+ * Positions, corpses and per entity state such as health or thirst are not kept; materialized
+ * entities start out as is typical for their age. Nothing moves in or out of an aggregated region.
+ */
+public class RegionPopulation {
+  private static final GrowthStage[] STAGES = GrowthStage.values();
+
+  // Ages are counted up to this, older entities are counted as this old
+  private static final int MAX_AGE = 63;
+  // Mean seeds a mature plant spreads per life update, see PlantEntity#updateGrowthStage()
+  private static final double SEEDS_PER_LIFE_UPDATE = 0.25;
+  // Life updates a plant without water nearby lasts
+  private static final int DRY_PLANT_LIFESPAN = PlantEntity.STARTING_HEALTH;
+  // Babies a bunny has before paying for them with its life
+  private static final int MATINGS_PER_LIFESPAN =
+      BunnyEntity.STARTING_HEALTH / BunnyEntity.SPAWN_COST;
+  // Tiles a bunny looking for a mate passes next to in a life update
+  private static final int MATING_REACH = 2 * Entity.MOVES_PER_AGE;
+
+  private final WorldMap map;
+  private final int fromR;
+  private final int fromC;
+  private final int toR;
+  private final int toC;
+  private final RandomStream random;
+
+  // What the region offers, see updateEnvironment()
+  private int groundTiles;
+  // ground plants can live on
+  private int wateredTiles;
+  // tiles seeds from watered ground can land on, and the dry ground among them
+  private int seedReachTiles;
+  private int dryReachTiles;
+
+  // Living entities by age in life updates
+  private final int[] plantsByAge = new int[MAX_AGE + 1];
+  private final int[] bunniesByAge = new int[MAX_AGE + 1];
+  private int plantCount;
+  private int bunnyCount;
+
+  /**
+   * Creates an empty population for the tiles from ({@param fromR}, {@param fromC}) up to but not
+   * including ({@param toR}, {@param toC}).
+   */
+  public RegionPopulation(WorldMap map, int fromR, int fromC, int toR, int toC,
+                          RandomStream random) {
+    this.map = map;
+    this.fromR = fromR;
+    this.fromC = fromC;
+    this.toR = toR;
+    this.toC = toC;
+    this.random = random;
+    updateEnvironment();
+  }
+
+  /**
+   * Recounts the tiles plants and bunnies can live on, needed after the terrain of the region
+   * changed.
+   */
+  public void updateEnvironment() {
+    int width = toC - fromC;
+    boolean[] watered = new boolean[(toR - fromR) * width];
+    boolean[] inSeedReach = new boolean[watered.length];
+    groundTiles = 0;
+    wateredTiles = 0;
+    for (int r = fromR; r < toR; r++) {
+      for (int c = fromC; c < toC; c++) {
+        if (map.getTerrainType(r, c) == TerrainType.WATER) {
+          continue;
+        }
+        groundTiles++;
+        if (!map.hasWaterNearby(r, c, PlantEntity.ROOT_DEPTH)) {
+          continue;
+        }
+        wateredTiles++;
+        watered[(r - fromR) * width + c - fromC] = true;
+        for (int i = 0; i < PlantEntity.NEARBY_OFFSETS.length; i += 2) {
+          int nr = r + PlantEntity.NEARBY_OFFSETS[i];
+          int nc = c + PlantEntity.NEARBY_OFFSETS[i + 1];
+          if (nr >= fromR && nr < toR && nc >= fromC && nc < toC) {
+            inSeedReach[(nr - fromR) * width + nc - fromC] = true;
+          }
+        }
+      }
+    }
+    seedReachTiles = 0;
+    dryReachTiles = 0;
+    for (int i = 0; i < watered.length; i++) {
+      if (inSeedReach[i]) {
+        seedReachTiles++;
+        if (!watered[i] && map.getTerrainType(fromR + i / width, fromC + i % width)
+                           != TerrainType.WATER) {
+          dryReachTiles++;
+        }
+      }
+    }
+  }
+
+  /**
+   * Counts {@param entity} into the population if it is of a species the population models.
+   * Corpses are dropped.
+   *
+   * @return if the entity is accounted for, and should be taken off the map.
+   */
+  public boolean add(Entity entity) {
+    if (!(entity instanceof PlantEntity) && !(entity instanceof BunnyEntity)) {
+      return false;
+    }
+    if (entity.getHealth() > 0) {
+      if (entity instanceof PlantEntity) {
+        addPlant(entity.getAge());
+      } else {
+        bunniesByAge[Math.min(entity.getAge(), MAX_AGE)]++;
+        bunnyCount++;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Counts a living plant of {@param age}, e.g. one taken out of a {@link PlantPopulation}.
+   */
+  public void addPlant(int age) {
+    plantsByAge[Math.min(age, MAX_AGE)]++;
+    plantCount++;
+  }
+
+  public int getPlantCount() {
+    return plantCount;
+  }
+
+  public int getBunnyCount() {
+    return bunnyCount;
+  }
+
+  /**
+   * @return number of plants in each growth stage, indexed by {@link GrowthStage#ordinal()}.
+   */
+  public int[] countPlantsByStage() {
+    return countByStage(plantsByAge, PlantEntity.MATURE_AGE);
+  }
+
+  /**
+   * @return number of bunnies in each growth stage, indexed by {@link GrowthStage#ordinal()}.
+   */
+  public int[] countBunniesByStage() {
+    return countByStage(bunniesByAge, BunnyEntity.MATURE_AGE);
+  }
+
+  private static int[] countByStage(int[] byAge, int matureAge) {
+    int[] counts = new int[STAGES.length];
+    for (int age = 0; age <= MAX_AGE; age++) {
+      GrowthStage stage = age > matureAge ? GrowthStage.MATURE : GrowthStage.YOUTH;
+      counts[stage.ordinal()] += byAge[age];
+    }
+    return counts;
+  }
+
+  /**
+   * Advances the population by one life update ({@link Entity#MOVES_PER_AGE} ticks).
+   */
+  public void update() {
+    updatePlants();
+    updateBunnies();
+  }
+
+  // Plants fill the watered ground first, the rest are on dry ground.
+  private void updatePlants() {
+    // plants on dry ground never get healthy enough to spread
+    int spreading = Math.min(countOlderThan(plantsByAge, PlantEntity.MATURE_AGE), wateredTiles);
+    age(plantsByAge);
+    int dryPlants = Math.max(0, plantCount - wateredTiles);
+    plantCount -= removeRandom(
+        plantsByAge, 0, plantCount, round((double) dryPlants / DRY_PLANT_LIFESPAN));
+    if (seedReachTiles == 0) {
+      return;
+    }
+    // seeds land anywhere near their plant, but only take root on free ground
+    double seedsPerTile = SEEDS_PER_LIFE_UPDATE * spreading / seedReachTiles;
+    int freeWatered = Math.max(0, wateredTiles - plantCount);
+    int freeDry = Math.max(0, dryReachTiles - Math.max(0, plantCount - wateredTiles));
+    int seedlings = round(seedsPerTile * freeWatered) + round(seedsPerTile * freeDry);
+    plantsByAge[1] += seedlings;
+    plantCount += seedlings;
+  }
+
+  private void updateBunnies() {
+    if (groundTiles == 0) {
+      return;
+    }
+    int mature = countOlderThan(bunniesByAge, BunnyEntity.MATURE_AGE);
+    age(bunniesByAge);
+    double crowding = Math.min(1, (double) bunnyCount / groundTiles);
+    // mates meet in proportion to how crowded the region is, each pair has to wait out the mating
+    // cooldown, and the young need free ground next to their parents
+    double meetings = (double) mature * (mature - 1) * MATING_REACH / (2 * groundTiles);
+    double births = Math.min(meetings, mature / (2.0 * map.getConfig().getMatingCooldown()));
+    int newborns = round(births * (1 - crowding));
+    // both parents pay health for every baby, until it kills them. Aged, parents are past
+    // MATURE_AGE + 1
+    bunnyCount -= removeRandom(bunniesByAge, BunnyEntity.MATURE_AGE + 2, mature,
+                               round(2.0 * newborns / MATINGS_PER_LIFESPAN));
+    bunniesByAge[1] += newborns;
+    bunnyCount += newborns;
+  }
+
+  private static int countOlderThan(int[] byAge, int age) {
+    int count = 0;
+    for (int a = age + 1; a <= MAX_AGE; a++) {
+      count += byAge[a];
+    }
+    return count;
+  }
+
+  private static void age(int[] byAge) {
+    byAge[MAX_AGE] += byAge[MAX_AGE - 1];
+    System.arraycopy(byAge, 0, byAge, 1, MAX_AGE - 1);
+    byAge[0] = 0;
+  }
+
+  // Removes up to n of the count entities in byAge from fromAge on, picked at random.
+  // @return number removed.
+  private int removeRandom(int[] byAge, int fromAge, int count, int n) {
+    n = Math.min(n, count);
+    for (int i = 0; i < n; i++) {
+      int pick = random.nextInt(count - i);
+      int age = fromAge;
+      while (pick >= byAge[age]) {
+        pick -= byAge[age++];
+      }
+      byAge[age]--;
+    }
+    return n;
+  }
+
+  // Rounds up with a probability of the fraction, so counts match the rates on average.
+  private int round(double expected) {
+    int whole = (int) expected;
+    return random.nextDouble() < expected - whole ? whole + 1 : whole;
+  }
+
+  /**
+   * Puts the population on the map as entities, or as plants of the map's
+   * {@link WorldMap#getPlantPopulation() PlantPopulation} if it has one, and empties it. Plants
+   * are placed on watered ground first, oldest first. Entities that do not fit are dropped.
+   */
+  public void materialize() {
+    int height = map.getHeight();
+    int[] ground = new int[groundTiles];
+    int watered = 0;
+    int dry = groundTiles;
+    for (int r = fromR; r < toR; r++) {
+      for (int c = fromC; c < toC; c++) {
+        if (map.getTerrainType(r, c) == TerrainType.WATER) {
+          continue;
+        }
+        if (map.hasWaterNearby(r, c, PlantEntity.ROOT_DEPTH)) {
+          ground[watered++] = r * height + c;
+        } else {
+          ground[--dry] = r * height + c;
+        }
+      }
+    }
+    shuffle(ground, 0, watered);
+    shuffle(ground, watered, ground.length);
+    int next = 0;
+    for (int age = MAX_AGE; age > 0; age--) {
+      for (int i = 0; i < plantsByAge[age]; i++) {
+        boolean placed = false;
+        while (!placed && next < ground.length) {
+          int tile = ground[next++];
+          placed = addPlant(tile / height, tile % height, age);
+        }
+      }
+    }
+
+    shuffle(ground, 0, ground.length);
+    next = 0;
+    for (int age = MAX_AGE; age > 0; age--) {
+      for (int i = 0; i < bunniesByAge[age]; i++) {
+        boolean placed = false;
+        while (!placed && next < ground.length) {
+          int tile = ground[next++];
+          placed = map.addEntity(
+              new BunnyEntity(map, tile / height, tile % height, random.split(), age),
+              false /* isNewborn */);
+        }
+      }
+    }
+
+    Arrays.fill(plantsByAge, 0);
+    Arrays.fill(bunniesByAge, 0);
+    plantCount = 0;
+    bunnyCount = 0;
+  }
+
+  private boolean addPlant(int r, int c, int age) {
+    PlantEntity plant = new PlantEntity(map, r, c, random.split(), age);
+    PlantPopulation compact = map.getPlantPopulation();
+    if (compact == null) {
+      return map.addEntity(plant, false /* isNewborn */);
+    }
+    return map.getNonOccupyingEntityAt(r, c) == null && compact.add(plant);
+  }
+
+  private void shuffle(int[] tiles, int from, int to) {
+    for (int i = to - 1; i > from; i--) {
+      int j = from + random.nextInt(i - from + 1);
+      int tile = tiles[i];
+      tiles[i] = tiles[j];
+      tiles[j] = tile;
+    }
+  }
+
+  /**
+   * @return a copy of this population for the same region of {@param map}, which must have the
+   * same terrain.
+   */
+  public RegionPopulation copyFor(WorldMap map) {
+    RegionPopulation copy = new RegionPopulation(map, fromR, fromC, toR, toC, random.copy());
+    System.arraycopy(plantsByAge, 0, copy.plantsByAge, 0, plantsByAge.length);
+    System.arraycopy(bunniesByAge, 0, copy.bunniesByAge, 0, bunniesByAge.length);
+    copy.plantCount = plantCount;
+    copy.bunnyCount = bunnyCount;
+    return copy;
+  }
+
+  /**
+   * Writes the counts, see {@link #readFrom(DataInput)}. The region and what it offers are not
+   * written, they follow from the map.
+   */
+  public void writeTo(DataOutput out) throws IOException {
+    random.writeState(out);
+    for (int count : plantsByAge) {
+      out.writeInt(count);
+    }
+    for (int count : bunniesByAge) {
+      out.writeInt(count);
+    }
+  }
+
+  /**
+   * Replaces the counts with those written by {@link #writeTo(DataOutput)}.
+   */
+  public void readFrom(DataInput in) throws IOException {
+    random.readState(in);
+    plantCount = 0;
+    for (int age = 0; age <= MAX_AGE; age++) {
+      plantsByAge[age] = in.readInt();
+      plantCount += plantsByAge[age];
+    }
+    bunnyCount = 0;
+    for (int age = 0; age <= MAX_AGE; age++) {
+      bunniesByAge[age] = in.readInt();
+      bunnyCount += bunniesByAge[age];
+    }
+  }
+}
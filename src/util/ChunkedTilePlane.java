@@ -0,0 +1,252 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * A width x height grid of small integers, one per tile, stored in square chunks of
+ * {@link #CHUNK_SIZE} x {@link #CHUNK_SIZE} tiles. Values are packed into bytes, shorts or ints
+ * depending on the {@link Encoding}, and a chunk whose tiles all hold the same value is kept as
+ * just that value until a different value is written to it.
+ */
+public class ChunkedTilePlane extends TilePlane {
+  public static final int CHUNK_BITS = 6;
+  public static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+  private static final int TILES_PER_CHUNK = CHUNK_SIZE * CHUNK_SIZE;
+
+  public enum Encoding {
+    BYTE(Byte.MIN_VALUE, Byte.MAX_VALUE),
+    SHORT(Short.MIN_VALUE, Short.MAX_VALUE),
+    INT(Integer.MIN_VALUE, Integer.MAX_VALUE);
+
+    public final int minValue;
+    public final int maxValue;
+
+    Encoding(int minValue, int maxValue) {
+      this.minValue = minValue;
+      this.maxValue = maxValue;
+    }
+  }
+
+  private final int width;
+  private final int height;
+  private final int chunkColumns;
+  private final Encoding encoding;
+
+  // Per chunk either the tile values (one of these, depending on the encoding), or null when every
+  // tile of the chunk holds uniformValues[chunk].
+  private final byte[][] byteChunks;
+  private final short[][] shortChunks;
+  private final int[][] intChunks;
+  private final int[] uniformValues;
+
+  public ChunkedTilePlane(int width, int height, Encoding encoding, int initialValue) {
+    this.width = width;
+    this.height = height;
+    this.encoding = encoding;
+    checkRange(initialValue);
+    chunkColumns = (height + CHUNK_MASK) >> CHUNK_BITS;
+    int chunks = ((width + CHUNK_MASK) >> CHUNK_BITS) * chunkColumns;
+    byteChunks = encoding == Encoding.BYTE ? new byte[chunks][] : null;
+    shortChunks = encoding == Encoding.SHORT ? new short[chunks][] : null;
+    intChunks = encoding == Encoding.INT ? new int[chunks][] : null;
+    uniformValues = new int[chunks];
+    Arrays.fill(uniformValues, initialValue);
+  }
+
+  @Override
+  public int getWidth() {
+    return width;
+  }
+
+  @Override
+  public int getHeight() {
+    return height;
+  }
+
+  public Encoding getEncoding() {
+    return encoding;
+  }
+
+  @Override
+  public int get(int r, int c) {
+    int chunk = (r >> CHUNK_BITS) * chunkColumns + (c >> CHUNK_BITS);
+    int index = ((r & CHUNK_MASK) << CHUNK_BITS) | (c & CHUNK_MASK);
+    switch (encoding) {
+      case BYTE:
+        byte[] bytes = byteChunks[chunk];
+        return bytes == null ? uniformValues[chunk] : bytes[index];
+      case SHORT:
+        short[] shorts = shortChunks[chunk];
+        return shorts == null ? uniformValues[chunk] : shorts[index];
+      default:
+        int[] ints = intChunks[chunk];
+        return ints == null ? uniformValues[chunk] : ints[index];
+    }
+  }
+
+  @Override
+  public void set(int r, int c, int value) {
+    int chunk = (r >> CHUNK_BITS) * chunkColumns + (c >> CHUNK_BITS);
+    if (!isAllocated(chunk)) {
+      if (uniformValues[chunk] == value) {
+        return;
+      }
+      allocate(chunk);
+    }
+    int index = ((r & CHUNK_MASK) << CHUNK_BITS) | (c & CHUNK_MASK);
+    switch (encoding) {
+      case BYTE:
+        checkRange(value);
+        byteChunks[chunk][index] = (byte) value;
+        break;
+      case SHORT:
+        checkRange(value);
+        shortChunks[chunk][index] = (short) value;
+        break;
+      default:
+        intChunks[chunk][index] = value;
+        break;
+    }
+  }
+
+  /**
+   * Sets every tile to {@param value}, releasing all chunk storage.
+   */
+  public void fill(int value) {
+    checkRange(value);
+    Arrays.fill(uniformValues, value);
+    for (int chunk = 0; chunk < uniformValues.length; chunk++) {
+      release(chunk);
+    }
+  }
+
+  /**
+   * Allocates storage for every chunk. After this, threads may {@link #set} disjoint tiles
+   * concurrently, since no write has to replace a uniform chunk. {@link #compact()} undoes it.
+   */
+  public void allocateAll() {
+    for (int chunk = 0; chunk < uniformValues.length; chunk++) {
+      if (!isAllocated(chunk)) {
+        allocate(chunk);
+      }
+    }
+  }
+
+  /**
+   * Releases the storage of chunks whose tiles all ended up holding the same value. Worth calling
+   * after bulk edits such as terrain generation.
+   */
+  @Override
+  public void compact() {
+    for (int chunk = 0; chunk < uniformValues.length; chunk++) {
+      if (!isAllocated(chunk)) {
+        continue;
+      }
+      int first = valueInChunk(chunk, 0);
+      boolean uniform = true;
+      for (int i = 1; i < TILES_PER_CHUNK && uniform; i++) {
+        uniform = valueInChunk(chunk, i) == first;
+      }
+      if (uniform) {
+        uniformValues[chunk] = first;
+        release(chunk);
+      }
+    }
+  }
+
+  /**
+   * @return bytes used to hold tile values, for memory accounting.
+   */
+  public long getStorageBytes() {
+    long bytesPerTile = encoding == Encoding.BYTE ? 1 : encoding == Encoding.SHORT ? 2 : 4;
+    long bytes = 4L * uniformValues.length;
+    for (int chunk = 0; chunk < uniformValues.length; chunk++) {
+      if (isAllocated(chunk)) {
+        bytes += bytesPerTile * TILES_PER_CHUNK;
+      }
+    }
+    return bytes;
+  }
+
+  @Override
+  public ChunkedTilePlane copy() {
+    ChunkedTilePlane copy = new ChunkedTilePlane(width, height, encoding, 0);
+    System.arraycopy(uniformValues, 0, copy.uniformValues, 0, uniformValues.length);
+    for (int chunk = 0; chunk < uniformValues.length; chunk++) {
+      switch (encoding) {
+        case BYTE:
+          copy.byteChunks[chunk] = byteChunks[chunk] == null ? null : byteChunks[chunk].clone();
+          break;
+        case SHORT:
+          copy.shortChunks[chunk] = shortChunks[chunk] == null ? null : shortChunks[chunk].clone();
+          break;
+        default:
+          copy.intChunks[chunk] = intChunks[chunk] == null ? null : intChunks[chunk].clone();
+          break;
+      }
+    }
+    return copy;
+  }
+
+  private boolean isAllocated(int chunk) {
+    switch (encoding) {
+      case BYTE:
+        return byteChunks[chunk] != null;
+      case SHORT:
+        return shortChunks[chunk] != null;
+      default:
+        return intChunks[chunk] != null;
+    }
+  }
+
+  private void allocate(int chunk) {
+    int value = uniformValues[chunk];
+    switch (encoding) {
+      case BYTE:
+        byteChunks[chunk] = new byte[TILES_PER_CHUNK];
+        Arrays.fill(byteChunks[chunk], (byte) value);
+        break;
+      case SHORT:
+        shortChunks[chunk] = new short[TILES_PER_CHUNK];
+        Arrays.fill(shortChunks[chunk], (short) value);
+        break;
+      default:
+        intChunks[chunk] = new int[TILES_PER_CHUNK];
+        Arrays.fill(intChunks[chunk], value);
+        break;
+    }
+  }
+
+  private void release(int chunk) {
+    switch (encoding) {
+      case BYTE:
+        byteChunks[chunk] = null;
+        break;
+      case SHORT:
+        shortChunks[chunk] = null;
+        break;
+      default:
+        intChunks[chunk] = null;
+        break;
+    }
+  }
+
+  private int valueInChunk(int chunk, int index) {
+    switch (encoding) {
+      case BYTE:
+        return byteChunks[chunk][index];
+      case SHORT:
+        return shortChunks[chunk][index];
+      default:
+        return intChunks[chunk][index];
+    }
+  }
+
+  private void checkRange(int value) {
+    if (value < encoding.minValue || value > encoding.maxValue) {
+      throw new IllegalArgumentException(
+          "Value " + value + " does not fit a " + encoding + " tile plane");
+    }
+  }
+}
@@ -1,33 +1,19 @@
 package util;
 
 import java.awt.*;
-import java.util.HashMap;
 
+/**
+ * Color blending. This computes a new color every call, use a {@link Gradient} for colors looked
+ * up while drawing.
+ */
 public class ColorUtil {
 
-  private static HashMap<Color, HashMap<Color, HashMap<Float, Color>>> existingColors;
-
   public static Color interpolate(Color startColor, Color endColor, float p) {
-    p = round(p);
-    if (existingColors == null) {
-      existingColors = new HashMap<>();
-    }
-
-    Color computedColor =
-        existingColors.computeIfAbsent(
-            startColor,
-            startColorKey -> new HashMap<>())
-                      .computeIfAbsent(endColor, endColorKey -> new HashMap<>())
-                      .get(p);
-
-    if (computedColor == null) {
-      final float inv = 1 - p;
-      existingColors.get(startColor).get(endColor).put(p, new Color(
-          (int) (inv * startColor.getRed() + p * endColor.getRed()),
-          (int) (inv * startColor.getGreen() + p * endColor.getGreen()),
-          (int) (inv * startColor.getBlue() + p * endColor.getBlue())));
-    }
-    return existingColors.get(startColor).get(endColor).get(p);
+    final float inv = 1 - p;
+    return new Color(
+        (int) (inv * startColor.getRed() + p * endColor.getRed()),
+        (int) (inv * startColor.getGreen() + p * endColor.getGreen()),
+        (int) (inv * startColor.getBlue() + p * endColor.getBlue()));
   }
 
   public static Color interpolate(Color startColor, Color midColor, Color endColor, float p) {
@@ -37,7 +23,15 @@ public class ColorUtil {
     return interpolate(startColor, midColor, 2 * p);
   }
 
-  private static float round(float f) {
-    return ((int) (10000 * f)) / 10000f;
+  /**
+   * Blends through {@param stops}, evenly spaced from 0 to 1.
+   */
+  public static Color interpolate(Color[] stops, float p) {
+    if (stops.length == 1) {
+      return stops[0];
+    }
+    float position = Math.max(0, Math.min(1, p)) * (stops.length - 1);
+    int segment = Math.min((int) position, stops.length - 2);
+    return interpolate(stops[segment], stops[segment + 1], position - segment);
   }
 }
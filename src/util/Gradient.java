@@ -0,0 +1,93 @@
+package util;
+
+import java.awt.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A color gradient precomputed at a fixed number of steps, so looking up a color is an array
+ * access. Gradients are defined once by name with {@link #define} and are immutable, so they can
+ * be used from any thread.
+ */
+public final class Gradient {
+  public static final int DEFAULT_STEPS = 256;
+
+  private static final Map<String, Gradient> gradients = new ConcurrentHashMap<>();
+
+  private final String name;
+  private final int[] argb;
+  private final Color[] colors;
+
+  private Gradient(String name, int steps, Color[] stops) {
+    this.name = name;
+    argb = new int[steps];
+    colors = new Color[steps];
+    for (int i = 0; i < steps; i++) {
+      float p = steps == 1 ? 0 : (float) i / (steps - 1);
+      colors[i] = ColorUtil.interpolate(stops, p);
+      argb[i] = colors[i].getRGB();
+    }
+  }
+
+  /**
+   * Defines a gradient through {@param stops}, evenly spaced from 0 to 1, sampled at
+   * {@param steps} points.
+   *
+   * @throws IllegalStateException if a gradient with that name was already defined.
+   */
+  public static Gradient define(String name, int steps, Color... stops) {
+    if (steps < 1 || stops.length == 0) {
+      throw new IllegalArgumentException("Gradient " + name + " needs steps and colors");
+    }
+    Gradient gradient = new Gradient(name, steps, stops.clone());
+    if (gradients.putIfAbsent(name, gradient) != null) {
+      throw new IllegalStateException("Gradient " + name + " is already defined");
+    }
+    return gradient;
+  }
+
+  /**
+   * @return the gradient defined with {@param name}, or null if there is none.
+   */
+  public static Gradient get(String name) {
+    return gradients.get(name);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getSteps() {
+    return argb.length;
+  }
+
+  /**
+   * @return the step nearest to {@param p}, clamped to [0, 1].
+   */
+  public int indexOf(float p) {
+    if (!(p > 0)) {
+      // also maps NaN to the start
+      return 0;
+    }
+    if (p >= 1) {
+      return argb.length - 1;
+    }
+    return (int) (p * (argb.length - 1) + 0.5f);
+  }
+
+  public int argb(int index) {
+    return argb[index];
+  }
+
+  public Color color(int index) {
+    return colors[index];
+  }
+
+  public int argbAt(float p) {
+    return argb[indexOf(p)];
+  }
+
+  public Color colorAt(float p) {
+    return colors[indexOf(p)];
+  }
+}
@@ -0,0 +1,78 @@
+package util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tile plane read from and written to a buffer, typically a memory-mapped region of a file, with
+ * the tiles laid out row by row (r * height + c). Nothing is copied on construction, tiles are
+ * only paged in once accessed.
+ */
+public class MappedTilePlane extends TilePlane {
+  private final ByteBuffer buffer;
+  private final int width;
+  private final int height;
+  private final ChunkedTilePlane.Encoding encoding;
+
+  public MappedTilePlane(ByteBuffer buffer, int width, int height,
+                         ChunkedTilePlane.Encoding encoding) {
+    if (encoding == ChunkedTilePlane.Encoding.INT) {
+      throw new IllegalArgumentException("Mapped planes hold byte or short tiles");
+    }
+    if (buffer.capacity() < getSizeInBytes(width, height, encoding)) {
+      throw new IllegalArgumentException("Buffer too small for a " + width + " x " + height
+                                         + " " + encoding + " plane");
+    }
+    this.buffer = buffer;
+    this.width = width;
+    this.height = height;
+    this.encoding = encoding;
+  }
+
+  public static long getSizeInBytes(int width, int height, ChunkedTilePlane.Encoding encoding) {
+    return (long) width * height * (encoding == ChunkedTilePlane.Encoding.BYTE ? 1 : 2);
+  }
+
+  @Override
+  public int getWidth() {
+    return width;
+  }
+
+  @Override
+  public int getHeight() {
+    return height;
+  }
+
+  @Override
+  public int get(int r, int c) {
+    int index = r * height + c;
+    return encoding == ChunkedTilePlane.Encoding.BYTE
+           ? buffer.get(index)
+           : buffer.getShort(2 * index);
+  }
+
+  @Override
+  public void set(int r, int c, int value) {
+    if (value < encoding.minValue || value > encoding.maxValue) {
+      throw new IllegalArgumentException(
+          "Value " + value + " does not fit a " + encoding + " tile plane");
+    }
+    int index = r * height + c;
+    if (encoding == ChunkedTilePlane.Encoding.BYTE) {
+      buffer.put(index, (byte) value);
+    } else {
+      buffer.putShort(2 * index, (short) value);
+    }
+  }
+
+  @Override
+  public ChunkedTilePlane copy() {
+    ChunkedTilePlane copy = new ChunkedTilePlane(width, height, encoding, 0);
+    for (int r = 0; r < width; r++) {
+      for (int c = 0; c < height; c++) {
+        copy.set(r, c, get(r, c));
+      }
+    }
+    copy.compact();
+    return copy;
+  }
+}
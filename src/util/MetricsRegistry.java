@@ -0,0 +1,143 @@
+package util;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Named counters, histograms and gauges, cheap enough to update every tick. Metrics may be updated
+ * from any thread and read at any time, e.g. polled by a view while the simulation runs.
+ */
+public class MetricsRegistry {
+  private final Map<String, Counter> counters = new ConcurrentSkipListMap<>();
+  private final Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+  private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+
+  /**
+   * @return the counter called {@param name}, created on first use.
+   */
+  public Counter counter(String name) {
+    return counters.computeIfAbsent(name, n -> new Counter());
+  }
+
+  /**
+   * @return the histogram called {@param name}, created on first use.
+   */
+  public Histogram histogram(String name) {
+    return histograms.computeIfAbsent(name, n -> new Histogram());
+  }
+
+  /**
+   * Registers a value read from {@param value} whenever the registry is read. Replaces any gauge
+   * with the same name.
+   */
+  public void gauge(String name, LongSupplier value) {
+    gauges.put(name, value);
+  }
+
+  public Map<String, Counter> getCounters() {
+    return counters;
+  }
+
+  public Map<String, Histogram> getHistograms() {
+    return histograms;
+  }
+
+  public Map<String, LongSupplier> getGauges() {
+    return gauges;
+  }
+
+  /**
+   * Prints every metric on a line of its own, sorted by name.
+   */
+  public void dump(PrintStream out) {
+    for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+      out.println(entry.getKey() + ": " + entry.getValue().get());
+    }
+    for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+      out.println(entry.getKey() + ": " + entry.getValue().getAsLong());
+    }
+    for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+      out.println(entry.getKey() + ": " + entry.getValue());
+    }
+  }
+
+  public static class Counter {
+    private final LongAdder count = new LongAdder();
+
+    public void increment() {
+      count.increment();
+    }
+
+    public void add(long n) {
+      count.add(n);
+    }
+
+    public long get() {
+      return count.sum();
+    }
+  }
+
+  /**
+   * Distribution of non-negative values in power of two buckets, so percentiles are exact to
+   * within a factor of two.
+   */
+  public static class Histogram {
+    // bucket i holds values of bit length i, i.e. [2^(i-1), 2^i)
+    private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records {@param value}, negative values are recorded as 0.
+     */
+    public void record(long value) {
+      value = Math.max(0, value);
+      buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(value));
+      count.increment();
+      sum.add(value);
+      max.accumulateAndGet(value, Math::max);
+    }
+
+    public long getCount() {
+      return count.sum();
+    }
+
+    public double getMean() {
+      long n = count.sum();
+      return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    public long getMax() {
+      return max.get();
+    }
+
+    /**
+     * @return an upper bound for the {@param p}th quantile (0 to 1) of the recorded values.
+     */
+    public long getPercentile(double p) {
+      long n = count.sum();
+      long rank = (long) Math.ceil(p * n);
+      long seen = 0;
+      for (int i = 0; i < buckets.length(); i++) {
+        seen += buckets.get(i);
+        if (seen >= rank && seen > 0) {
+          return Math.min(max.get(), i == 0 ? 0 : (1L << i) - 1);
+        }
+      }
+      return max.get();
+    }
+
+    @Override
+    public String toString() {
+      return String.format("count=%d mean=%.1f p50<=%d p99<=%d max=%d",
+                           getCount(), getMean(), getPercentile(0.5), getPercentile(0.99),
+                           getMax());
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Seedable, splittable pseudo random number generator (the SplitMix64 algorithm also used by
+ * {@link java.util.SplittableRandom}). Unlike SplittableRandom its state can be saved and restored,
+ * so simulations can be snapshotted and replayed exactly.
+ * <p>
+ * Not thread safe: give every thread, subsystem or entity its own stream via {@link #split()}.
+ */
+public class RandomStream {
+  private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+  private static final double DOUBLE_UNIT = 0x1.0p-53;
+
+  private long seed;
+  private long gamma;
+
+  public RandomStream(long seed) {
+    this(seed, GOLDEN_GAMMA);
+  }
+
+  private RandomStream(long seed, long gamma) {
+    this.seed = seed;
+    this.gamma = gamma;
+  }
+
+  /**
+   * @return a new stream, statistically independent of this one, derived deterministically from
+   * the current state of this stream.
+   */
+  public RandomStream split() {
+    return new RandomStream(nextLong(), mixGamma(nextSeed()));
+  }
+
+  /**
+   * @return a stream in the same state as this one, producing the same values.
+   */
+  public RandomStream copy() {
+    return new RandomStream(seed, gamma);
+  }
+
+  public long nextLong() {
+    return mix64(nextSeed());
+  }
+
+  public int nextInt() {
+    return mix32(nextSeed());
+  }
+
+  /**
+   * @return uniformly distributed value in [0, bound).
+   */
+  public int nextInt(int bound) {
+    if (bound <= 0) {
+      throw new IllegalArgumentException("bound must be positive");
+    }
+    int r = mix32(nextSeed());
+    int m = bound - 1;
+    if ((bound & m) == 0) {
+      // power of two
+      return r & m;
+    }
+    // reject values from the incomplete last interval to stay uniform
+    for (int u = r >>> 1; u + m - (r = u % bound) < 0; u = mix32(nextSeed()) >>> 1) {
+    }
+    return r;
+  }
+
+  /**
+   * @return uniformly distributed value in [0, 1).
+   */
+  public double nextDouble() {
+    return (nextLong() >>> 11) * DOUBLE_UNIT;
+  }
+
+  public boolean nextBoolean() {
+    return mix32(nextSeed()) < 0;
+  }
+
+  public void writeState(DataOutput out) throws IOException {
+    out.writeLong(seed);
+    out.writeLong(gamma);
+  }
+
+  public void readState(DataInput in) throws IOException {
+    seed = in.readLong();
+    gamma = in.readLong();
+  }
+
+  private long nextSeed() {
+    return seed += gamma;
+  }
+
+  private static long mix64(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  private static int mix32(long z) {
+    z = (z ^ (z >>> 33)) * 0x62a9d9ed799705f5L;
+    return (int) (((z ^ (z >>> 28)) * 0xcb24d0a5c88c35b3L) >>> 32);
+  }
+
+  // Gammas need to be odd and have enough bit transitions to give well mixed sequences.
+  private static long mixGamma(long z) {
+    z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+    z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    z = (z ^ (z >>> 33)) | 1L;
+    int n = Long.bitCount(z ^ (z >>> 1));
+    return (n < 24) ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+  }
+}
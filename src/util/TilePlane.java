@@ -0,0 +1,26 @@
+package util;
+
+/**
+ * A width x height grid holding one small integer per tile.
+ */
+public abstract class TilePlane {
+
+  public abstract int getWidth();
+
+  public abstract int getHeight();
+
+  public abstract int get(int r, int c);
+
+  public abstract void set(int r, int c, int value);
+
+  /**
+   * Releases storage that is no longer needed after bulk edits. Does nothing by default.
+   */
+  public void compact() {
+  }
+
+  /**
+   * @return a copy of the plane held in memory, sharing no storage with this one.
+   */
+  public abstract ChunkedTilePlane copy();
+}
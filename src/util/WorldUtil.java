@@ -6,8 +6,37 @@ import java.util.LinkedList;
 
 public class WorldUtil {
 
+  /**
+   * Offsets of the 8 squares touching a tile, as interleaved (dr, dc) pairs in row-major order.
+   * Shared, do not modify.
+   */
+  public static final int[] ADJACENT_OFFSETS = {
+      -1, -1, -1, 0, -1, 1,
+      0, -1, 0, 1,
+      1, -1, 1, 0, 1, 1
+  };
+
+  private static final int CACHED_RADII = 8;
+  private static final int[][] NEARBY_OFFSETS = new int[CACHED_RADII + 1][];
+
+  static {
+    for (int radius = 0; radius <= CACHED_RADII; radius++) {
+      NEARBY_OFFSETS[radius] = buildNearbyOffsets(radius);
+    }
+  }
+
+  /**
+   * Called for each tile of a neighborhood, see {@link #forEachOnMap}.
+   */
+  public interface TileVisitor {
+    void visit(int r, int c);
+  }
+
   /**
    * Return list of coordinates of tiles that are valid coordinates on the map.
+   * <p>
+   * Allocates a list and a {@link Vec2d} per tile; hot paths should walk
+   * {@link #nearbyOffsets(int)} instead.
    */
   public static LinkedList<Vec2d> getValidNearbySquares(
       WorldMap worldMap,
@@ -16,19 +45,79 @@ public class WorldUtil {
       int searchRadius) {
 
     LinkedList<Vec2d> results = new LinkedList<>();
+    forEachOnMap(nearbyOffsets(searchRadius), curR, curC, worldMap.getWidth(),
+                 worldMap.getHeight(), (r, c) -> results.add(new Vec2d(r, c)));
+    return results;
+  }
 
-    for (int r = curR - searchRadius; r <= curR + searchRadius; r++) {
-      for (int c = curC - searchRadius; c <= curC + searchRadius; c++) {
-        if (!ifInvalidIndex(r, c, worldMap.getWidth(), worldMap.getHeight())
-            && (r != curR && c != curC)) {
-          results.add(new Vec2d(r, c));
-        }
+  /**
+   * Offsets of the squares {@link #getValidNearbySquares} considers near a tile: those within
+   * {@param radius} that share neither its row nor its column, as interleaved (dr, dc) pairs in
+   * row-major order. Small radii are shared tables, do not modify.
+   */
+  public static int[] nearbyOffsets(int radius) {
+    return radius <= CACHED_RADII ? NEARBY_OFFSETS[radius] : buildNearbyOffsets(radius);
+  }
+
+  /**
+   * Calls {@param visitor} with every tile at {@param offsets} from (r, c) that lies on a
+   * {@param maxR} x {@param maxC} map, in the order of the offsets.
+   */
+  public static void forEachOnMap(
+      int[] offsets, int r, int c, int maxR, int maxC, TileVisitor visitor) {
+    for (int i = 0; i < offsets.length; i += 2) {
+      int nr = r + offsets[i];
+      int nc = c + offsets[i + 1];
+      if (!ifInvalidIndex(nr, nc, maxR, maxC)) {
+        visitor.visit(nr, nc);
       }
     }
-    return results;
+  }
+
+  /**
+   * @return how many of the tiles at {@param offsets} from (r, c) lie on a {@param maxR} x
+   * {@param maxC} map.
+   */
+  public static int countOnMap(int[] offsets, int r, int c, int maxR, int maxC) {
+    int count = 0;
+    for (int i = 0; i < offsets.length; i += 2) {
+      if (!ifInvalidIndex(r + offsets[i], c + offsets[i + 1], maxR, maxC)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return the {@param n}th (from 0) tile at {@param offsets} from (r, c) that lies on a
+   * {@param maxR} x {@param maxC} map, as r * maxC + c, or -1 if there are not that many.
+   */
+  public static int nthOnMap(int[] offsets, int r, int c, int maxR, int maxC, int n) {
+    for (int i = 0; i < offsets.length; i += 2) {
+      int nr = r + offsets[i];
+      int nc = c + offsets[i + 1];
+      if (!ifInvalidIndex(nr, nc, maxR, maxC) && n-- == 0) {
+        return nr * maxC + nc;
+      }
+    }
+    return -1;
   }
 
   public static boolean ifInvalidIndex(int r, int c, int maxR, int maxC) {
     return r < 0 || c < 0 || r >= maxR || c >= maxC;
   }
+
+  private static int[] buildNearbyOffsets(int radius) {
+    int[] offsets = new int[2 * (2 * radius) * (2 * radius)];
+    int i = 0;
+    for (int dr = -radius; dr <= radius; dr++) {
+      for (int dc = -radius; dc <= radius; dc++) {
+        if (dr != 0 && dc != 0) {
+          offsets[i++] = dr;
+          offsets[i++] = dc;
+        }
+      }
+    }
+    return offsets;
+  }
 }
@@ -0,0 +1,132 @@
+package world;
+
+import entity.entities.BunnyEntity;
+import entity.entities.PlantEntity;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Runs many independent worlds at once, one per {@link WorldConfig}, and writes a CSV line of
+ * summary statistics for each as soon as it finishes. Every world is created and run on a single
+ * thread of the pool, so runs are identical to running the same config on its own.
+ */
+public class BatchRunner {
+  // How often a run samples its population for the peak and extinction statistics
+  private static final int SAMPLE_TICKS = 100;
+
+  private static final String PLANTS = PlantEntity.class.getSimpleName();
+  private static final String BUNNIES = BunnyEntity.class.getSimpleName();
+
+  private final ForkJoinPool mPool;
+  private final Writer mResults;
+
+  /**
+   * Runs worlds on {@param pool} and writes their results to {@param results}, which the caller
+   * has to close.
+   */
+  public BatchRunner(ForkJoinPool pool, Writer results) {
+    mPool = pool;
+    mResults = results;
+  }
+
+  /**
+   * @return a config for every combination of the values in {@param sweep}, which maps
+   * {@link WorldConfig#PARAMETERS parameter names} to the values to try. Parameters left out keep
+   * their defaults.
+   */
+  public static List<WorldConfig> sweep(Map<String, List<String>> sweep) {
+    List<WorldConfig> configs = new ArrayList<>();
+    configs.add(new WorldConfig());
+    for (Map.Entry<String, List<String>> parameter : sweep.entrySet()) {
+      List<WorldConfig> combined = new ArrayList<>();
+      for (WorldConfig config : configs) {
+        for (String value : parameter.getValue()) {
+          WorldConfig copy = config.copy();
+          copy.set(parameter.getKey(), value);
+          combined.add(copy);
+        }
+      }
+      configs = combined;
+    }
+    return configs;
+  }
+
+  /**
+   * Runs every one of {@param configs} for {@param ticks} ticks, writing a header and then a line
+   * per run in the order they finish. Lines start with the index of their config.
+   *
+   * @throws ExecutionException with the first run that failed. Runs not started yet are
+   *     cancelled.
+   */
+  public void run(List<WorldConfig> configs, long ticks)
+      throws IOException, InterruptedException, ExecutionException {
+    mResults.write("run," + String.join(",", WorldConfig.PARAMETERS)
+                   + ",ticks,millis,plants,bunnies,peakBunnies,bunniesExtinctAt\n");
+    mResults.flush();
+
+    CompletionService<String> completed = new ExecutorCompletionService<>(mPool);
+    List<Future<String>> runs = new ArrayList<>();
+    for (int i = 0; i < configs.size(); i++) {
+      int run = i;
+      WorldConfig config = configs.get(i).copy();
+      // worlds generate side by side, their output would interleave
+      config.setVerbose(false);
+      runs.add(completed.submit(() -> run + "," + runWorld(run, config, ticks)));
+    }
+    try {
+      for (int i = 0; i < runs.size(); i++) {
+        mResults.write(completed.take().get() + "\n");
+        // stream results, a sweep can run for hours
+        mResults.flush();
+      }
+    } finally {
+      for (Future<String> run : runs) {
+        run.cancel(true);
+      }
+    }
+  }
+
+  // Creates and runs one world, returning its parameters and statistics as CSV fields.
+  private static String runWorld(int run, WorldConfig config, long ticks) {
+    long start = System.nanoTime();
+    HeadlessRunner runner = new HeadlessRunner(
+        TerrainGenerator.createMap("run-" + run, config, null /* pool */));
+    Map<String, Integer> population = runner.getPopulation();
+    int peakBunnies = population.getOrDefault(BUNNIES, 0);
+    long bunniesExtinctAt = -1;
+    for (long t = 0; t < ticks; ) {
+      long sample = Math.min(SAMPLE_TICKS, ticks - t);
+      try {
+        runner.run(sample);
+      } catch (IOException e) {
+        // only thrown when exporting frames, which batch runs do not
+        throw new IllegalStateException(e);
+      }
+      t += sample;
+      population = runner.getPopulation();
+      int bunnies = population.getOrDefault(BUNNIES, 0);
+      peakBunnies = Math.max(peakBunnies, bunnies);
+      if (bunnies == 0 && bunniesExtinctAt < 0) {
+        bunniesExtinctAt = t;
+      }
+    }
+    long millis = (System.nanoTime() - start) / 1_000_000;
+
+    String[] fields = new String[WorldConfig.PARAMETERS.length];
+    for (int i = 0; i < fields.length; i++) {
+      fields[i] = config.get(WorldConfig.PARAMETERS[i]);
+    }
+    return String.join(",", fields) + "," + ticks + "," + millis + ","
+           + population.getOrDefault(PLANTS, 0) + "," + population.getOrDefault(BUNNIES, 0) + ","
+           + peakBunnies + "," + bunniesExtinctAt;
+  }
+}
@@ -0,0 +1,73 @@
+package world;
+
+import java.util.Arrays;
+
+/**
+ * Blocks of tiles whose entities changed since the last {@link #drain}, so a view can redraw just
+ * those. Marking a tile marks its whole block, keeping the bookkeeping small on large maps.
+ */
+final class DirtyTiles {
+  static final int BLOCK_BITS = 3;
+  static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+
+  private final int mBlockColumns;
+  private final boolean[] mDirty;
+  private int[] mBlocks = new int[64];
+  private int mCount;
+  private boolean mAllDirty = true;
+
+  DirtyTiles(int width, int height) {
+    mBlockColumns = (height + BLOCK_SIZE - 1) >> BLOCK_BITS;
+    mDirty = new boolean[((width + BLOCK_SIZE - 1) >> BLOCK_BITS) * mBlockColumns];
+  }
+
+  void mark(int r, int c) {
+    int block = (r >> BLOCK_BITS) * mBlockColumns + (c >> BLOCK_BITS);
+    if (mDirty[block] || mAllDirty) {
+      return;
+    }
+    mDirty[block] = true;
+    if (mCount == mBlocks.length) {
+      mBlocks = Arrays.copyOf(mBlocks, 2 * mCount);
+    }
+    mBlocks[mCount++] = block;
+  }
+
+  /**
+   * Marks every tile, e.g. after the terrain changed.
+   */
+  void markAll() {
+    mAllDirty = true;
+    clearBlocks();
+  }
+
+  /**
+   * Hands the dirty blocks to {@param visitor} as the tile at their top left corner and clears
+   * them.
+   *
+   * @return false, without visiting anything, if everything is dirty and should be redrawn.
+   */
+  boolean drain(BlockVisitor visitor) {
+    if (mAllDirty) {
+      mAllDirty = false;
+      return false;
+    }
+    for (int i = 0; i < mCount; i++) {
+      int block = mBlocks[i];
+      visitor.visit((block / mBlockColumns) << BLOCK_BITS, (block % mBlockColumns) << BLOCK_BITS);
+    }
+    clearBlocks();
+    return true;
+  }
+
+  private void clearBlocks() {
+    for (int i = 0; i < mCount; i++) {
+      mDirty[mBlocks[i]] = false;
+    }
+    mCount = 0;
+  }
+
+  interface BlockVisitor {
+    void visit(int r0, int c0);
+  }
+}
@@ -0,0 +1,46 @@
+package world;
+
+import entity.api.Entity;
+import util.ChunkedTilePlane;
+
+/**
+ * One entity slot per tile. Like {@link ChunkedTilePlane}, slots are stored in square chunks that
+ * are only allocated once an entity is placed in them, so sparsely populated maps stay cheap.
+ */
+class EntityGrid {
+  private static final int CHUNK_BITS = ChunkedTilePlane.CHUNK_BITS;
+  private static final int CHUNK_MASK = ChunkedTilePlane.CHUNK_SIZE - 1;
+
+  private final int mChunkColumns;
+  private final Entity[][] mChunks;
+
+  EntityGrid(int width, int height) {
+    mChunkColumns = (height + CHUNK_MASK) >> CHUNK_BITS;
+    mChunks = new Entity[((width + CHUNK_MASK) >> CHUNK_BITS) * mChunkColumns][];
+  }
+
+  Entity get(int r, int c) {
+    Entity[] chunk = mChunks[(r >> CHUNK_BITS) * mChunkColumns + (c >> CHUNK_BITS)];
+    return chunk == null ? null : chunk[((r & CHUNK_MASK) << CHUNK_BITS) | (c & CHUNK_MASK)];
+  }
+
+  void set(int r, int c, Entity entity) {
+    int chunkIndex = (r >> CHUNK_BITS) * mChunkColumns + (c >> CHUNK_BITS);
+    Entity[] chunk = mChunks[chunkIndex];
+    if (chunk == null) {
+      if (entity == null) {
+        return;
+      }
+      chunk = new Entity[1 << (2 * CHUNK_BITS)];
+      mChunks[chunkIndex] = chunk;
+    }
+    chunk[((r & CHUNK_MASK) << CHUNK_BITS) | (c & CHUNK_MASK)] = entity;
+  }
+
+  /**
+   * Frees the chunk holding the tile, which must have no entities left in it.
+   */
+  void releaseChunk(int r, int c) {
+    mChunks[(r >> CHUNK_BITS) * mChunkColumns + (c >> CHUNK_BITS)] = null;
+  }
+}
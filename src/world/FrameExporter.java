@@ -0,0 +1,184 @@
+package world;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Saves every Nth tick of a map as an image, for time-lapses of long runs. Call {@link #onTick()}
+ * after each update of the map and {@link #close()} at the end.
+ * <p>
+ * Frames are captured on the simulation thread, then drawn and encoded on a pool of encoder
+ * threads so encoding overlaps with the ticks that follow. At most two frames per encoder are in
+ * flight, further ticks wait for the encoders instead of piling up frames in memory.
+ * <p>
+ * Frames are written as PNG files named after the map and tick, or, with
+ * {@link #setRawOutput(boolean)}, appended in order to a single file of raw 24 bit RGB frames,
+ * e.g. for {@code ffmpeg -f rawvideo -pix_fmt rgb24 -s WIDTHxHEIGHT -i map.rgb}.
+ */
+public class FrameExporter implements Closeable {
+  private final WorldMap mMap;
+  private final OffscreenRenderer mRenderer;
+  private final Path mDirectory;
+  private final ExecutorService mEncoders;
+  private final Semaphore mInFlight;
+
+  private int mTickStride = 1;
+  private boolean mRawOutput;
+  private OutputStream mRawStream;
+  // raw frames are written in tick order, each after the one before
+  private CompletableFuture<Void> mLastRawWrite = CompletableFuture.completedFuture(null);
+
+  // First thing that went wrong writing a frame, rethrown by the next onTick() or close()
+  private final AtomicReference<Throwable> mFailure = new AtomicReference<>();
+  private long mFramesExported;
+
+  /**
+   * @param width          width of the frames in pixels
+   * @param height         height of the frames in pixels
+   * @param encoderThreads threads drawing and encoding frames
+   */
+  public FrameExporter(WorldMap map, Path directory, int width, int height, int encoderThreads)
+      throws IOException {
+    mMap = map;
+    mRenderer = new OffscreenRenderer(map, width, height);
+    mDirectory = Files.createDirectories(directory);
+    mEncoders = Executors.newFixedThreadPool(Math.max(1, encoderThreads), r -> {
+      Thread thread = new Thread(r, "frame-encoder");
+      thread.setDaemon(true);
+      return thread;
+    });
+    mInFlight = new Semaphore(2 * Math.max(1, encoderThreads));
+  }
+
+  /**
+   * Exports only ticks that are a multiple of {@param tickStride}.
+   */
+  public void setTickStride(int tickStride) {
+    mTickStride = Math.max(1, tickStride);
+  }
+
+  /**
+   * @see OffscreenRenderer#setElevationSlice(int, boolean)
+   */
+  public void setElevationSlice(int elevation, boolean seeAllBelow) {
+    mRenderer.setElevationSlice(elevation, seeAllBelow);
+  }
+
+  /**
+   * Writes raw RGB frames to one file instead of PNG files. Must be set before the first frame.
+   */
+  public void setRawOutput(boolean rawOutput) {
+    mRawOutput = rawOutput;
+  }
+
+  /**
+   * @return number of frames handed to the encoders so far.
+   */
+  public long getFramesExported() {
+    return mFramesExported;
+  }
+
+  /**
+   * Exports the map's current tick if it falls on the stride. Call on the thread updating the
+   * map, after each update.
+   *
+   * @throws IOException if an earlier frame failed to be written.
+   */
+  public void onTick() throws IOException {
+    throwIfFailed();
+    if (mMap.getTick() % mTickStride != 0) {
+      return;
+    }
+    OffscreenRenderer.Frame frame = mRenderer.capture();
+    mInFlight.acquireUninterruptibly();
+    mFramesExported++;
+    if (mRawOutput) {
+      if (mRawStream == null) {
+        mRawStream = new BufferedOutputStream(
+            Files.newOutputStream(mDirectory.resolve(mMap.getMapId() + ".rgb")));
+      }
+      CompletableFuture<byte[]> encoded =
+          CompletableFuture.supplyAsync(() -> toRgb(mRenderer.draw(frame)), mEncoders);
+      mLastRawWrite = mLastRawWrite
+          .thenCombineAsync(encoded, (ignored, rgb) -> {
+            try {
+              mRawStream.write(rgb);
+            } catch (IOException e) {
+              mFailure.compareAndSet(null, e);
+            }
+            return (Void) null;
+          }, mEncoders)
+          .whenComplete((ignored, t) -> mInFlight.release());
+    } else {
+      Path file = mDirectory.resolve(
+          String.format("%s-%010d.png", mMap.getMapId(), frame.getTick()));
+      mEncoders.execute(() -> {
+        try {
+          ImageIO.write(mRenderer.draw(frame), "png", file.toFile());
+        } catch (Throwable t) {
+          // nothing else would see it, the encoders run the task detached
+          mFailure.compareAndSet(null, t);
+        } finally {
+          mInFlight.release();
+        }
+      });
+    }
+  }
+
+  /**
+   * Waits for all frames to be written.
+   *
+   * @throws IOException if any frame failed to be written.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      // before shutting down, the last writes may still have to be scheduled on the encoders
+      mLastRawWrite.join();
+    } catch (CompletionException e) {
+      mFailure.compareAndSet(null, e.getCause());
+    }
+    mEncoders.shutdown();
+    try {
+      mEncoders.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while writing frames", e);
+    }
+    if (mRawStream != null) {
+      mRawStream.close();
+    }
+    throwIfFailed();
+  }
+
+  private void throwIfFailed() throws IOException {
+    Throwable failure = mFailure.get();
+    if (failure != null) {
+      throw new IOException("Failed to write frame", failure);
+    }
+  }
+
+  private static byte[] toRgb(BufferedImage image) {
+    int[] pixels = RasterRenderer.pixelsOf(image);
+    byte[] rgb = new byte[3 * pixels.length];
+    for (int i = 0; i < pixels.length; i++) {
+      rgb[3 * i] = (byte) (pixels[i] >> 16);
+      rgb[3 * i + 1] = (byte) (pixels[i] >> 8);
+      rgb[3 * i + 2] = (byte) pixels[i];
+    }
+    return rgb;
+  }
+}
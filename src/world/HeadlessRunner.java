@@ -0,0 +1,85 @@
+package world;
+
+import entity.api.Entity;
+import entity.entities.PlantEntity;
+import entity.entities.PlantPopulation;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Advances a {@link WorldMap} as fast as possible, without any UI or timer in the loop.
+ */
+public class HeadlessRunner {
+  private final WorldMap mMap;
+  private long mTicks;
+  private FrameExporter mFrameExporter;
+
+  public HeadlessRunner(WorldMap map) {
+    mMap = map;
+  }
+
+  /**
+   * Hands every tick to {@param frameExporter}, or to nothing if null. The caller still has to
+   * close it.
+   */
+  public void setFrameExporter(FrameExporter frameExporter) {
+    mFrameExporter = frameExporter;
+  }
+
+  public WorldMap getMap() {
+    return mMap;
+  }
+
+  public long getTicks() {
+    return mTicks;
+  }
+
+  /**
+   * Runs {@param numTicks} ticks back to back.
+   *
+   * @return the achieved throughput in ticks per second.
+   * @throws IOException if exporting a frame failed.
+   */
+  public double run(long numTicks) throws IOException {
+    long start = System.nanoTime();
+    for (long t = 0; t < numTicks; t++) {
+      mMap.updateEntities();
+      mTicks++;
+      if (mFrameExporter != null) {
+        mFrameExporter.onTick();
+      }
+    }
+    long elapsed = Math.max(1, System.nanoTime() - start);
+    return numTicks * 1e9 / elapsed;
+  }
+
+  /**
+   * @return number of living entities on the map, keyed by entity type.
+   */
+  public Map<String, Integer> getPopulation() {
+    Map<String, Integer> population = new TreeMap<>();
+    for (Entity e : mMap.entityList) {
+      if (e.getHealth() > 0) {
+        population.merge(e.getClass().getSimpleName(), 1, Integer::sum);
+      }
+    }
+    PlantPopulation plants = mMap.getPlantPopulation();
+    if (plants != null) {
+      population.merge(PlantEntity.class.getSimpleName(), plants.getAliveCount(), Integer::sum);
+    }
+    LevelOfDetail levelOfDetail = mMap.getLevelOfDetail();
+    if (levelOfDetail != null) {
+      Map<String, int[]> aggregated = new HashMap<>();
+      levelOfDetail.countByStage(aggregated);
+      for (Map.Entry<String, int[]> entry : aggregated.entrySet()) {
+        for (int count : entry.getValue()) {
+          population.merge(entry.getKey(), count, Integer::sum);
+        }
+      }
+    }
+    return population;
+  }
+}
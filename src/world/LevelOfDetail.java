@@ -0,0 +1,212 @@
+package world;
+
+import entity.api.Entity;
+import entity.entities.BunnyEntity;
+import entity.entities.PlantEntity;
+import entity.entities.PlantPopulation;
+import entity.entities.RegionPopulation;
+import util.ChunkedTilePlane;
+import util.Rect2d;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Which regions of a map are simulated entity by entity and which as {@link RegionPopulation}s,
+ * see {@link WorldMap#setAreaOfInterest(Rect2d...)}. Regions are squares of
+ * {@link ChunkedTilePlane#CHUNK_SIZE} tiles, lined up with the chunks tiles and entities are
+ * stored in.
+ */
+class LevelOfDetail {
+  private static final int REGION_BITS = ChunkedTilePlane.CHUNK_BITS;
+  private static final int REGION_SIZE = ChunkedTilePlane.CHUNK_SIZE;
+
+  private final WorldMap mMap;
+  private final int mRegionColumns;
+  // Population of each region simulated in aggregate, null for regions simulated in detail
+  private final RegionPopulation[] mAggregates;
+
+  LevelOfDetail(WorldMap map) {
+    mMap = map;
+    mRegionColumns = (map.getHeight() + REGION_SIZE - 1) >> REGION_BITS;
+    int regionRows = (map.getWidth() + REGION_SIZE - 1) >> REGION_BITS;
+    mAggregates = new RegionPopulation[regionRows * mRegionColumns];
+  }
+
+  boolean isAggregated(int r, int c) {
+    return mAggregates[(r >> REGION_BITS) * mRegionColumns + (c >> REGION_BITS)] != null;
+  }
+
+  /**
+   * Materializes the regions overlapping any of {@param areas} and aggregates all others.
+   */
+  void setAreaOfInterest(Rect2d[] areas) {
+    for (int region = 0; region < mAggregates.length; region++) {
+      boolean active = overlapsAny(region, areas);
+      if (active && mAggregates[region] != null) {
+        RegionPopulation aggregate = mAggregates[region];
+        // the tiles have to accept entities again before they can be placed
+        mAggregates[region] = null;
+        aggregate.materialize();
+      } else if (!active && mAggregates[region] == null) {
+        mAggregates[region] = aggregate(region);
+      }
+    }
+  }
+
+  private boolean overlapsAny(int region, Rect2d[] areas) {
+    int fromR = (region / mRegionColumns) << REGION_BITS;
+    int fromC = (region % mRegionColumns) << REGION_BITS;
+    for (Rect2d area : areas) {
+      if (area.x < fromR + REGION_SIZE && fromR < area.x + area.width
+          && area.y < fromC + REGION_SIZE && fromC < area.y + area.height) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Takes the entities of the region off the map and counts them into a new aggregate.
+  private RegionPopulation aggregate(int region) {
+    int fromR = (region / mRegionColumns) << REGION_BITS;
+    int fromC = (region % mRegionColumns) << REGION_BITS;
+    int toR = Math.min(fromR + REGION_SIZE, mMap.getWidth());
+    int toC = Math.min(fromC + REGION_SIZE, mMap.getHeight());
+    RegionPopulation aggregate =
+        new RegionPopulation(mMap, fromR, fromC, toR, toC, mMap.splitRandom());
+    PlantPopulation plants = mMap.getPlantPopulation();
+    // species the aggregate does not model stay where they are
+    boolean emptied = true;
+    for (int r = fromR; r < toR; r++) {
+      for (int c = fromC; c < toC; c++) {
+        Entity occupying = mMap.getOccupyingEntityAt(r, c);
+        if (occupying != null) {
+          if (aggregate.add(occupying)) {
+            mMap.removeEntity(occupying);
+          } else {
+            emptied = false;
+          }
+        }
+        Entity nonOccupying = mMap.getNonOccupyingEntityAt(r, c);
+        if (nonOccupying != null) {
+          if (aggregate.add(nonOccupying)) {
+            mMap.removeEntity(nonOccupying);
+          } else {
+            emptied = false;
+          }
+        }
+        if (plants != null) {
+          int age = plants.remove(r, c);
+          if (age > 0) {
+            aggregate.addPlant(age);
+          }
+        }
+      }
+    }
+    if (emptied) {
+      mMap.releaseEntityStorage(fromR, fromC);
+    }
+    return aggregate;
+  }
+
+  /**
+   * Advances the aggregated regions due a life update at {@param tick}. Regions take turns so
+   * that every tick updates about as many.
+   */
+  void update(long tick) {
+    for (int region = (int) (tick % Entity.MOVES_PER_AGE); region < mAggregates.length;
+         region += Entity.MOVES_PER_AGE) {
+      if (mAggregates[region] != null) {
+        mAggregates[region].update();
+      }
+    }
+  }
+
+  /**
+   * Lets the aggregate holding the tile know its terrain changed.
+   */
+  void onTileChanged(int r, int c) {
+    RegionPopulation aggregate =
+        mAggregates[(r >> REGION_BITS) * mRegionColumns + (c >> REGION_BITS)];
+    if (aggregate != null) {
+      aggregate.updateEnvironment();
+    }
+  }
+
+  void onTerrainChanged() {
+    for (RegionPopulation aggregate : mAggregates) {
+      if (aggregate != null) {
+        aggregate.updateEnvironment();
+      }
+    }
+  }
+
+  /**
+   * Adds the aggregated populations to {@param population}, which maps species (entity class
+   * simple name) to counts by growth stage.
+   */
+  void countByStage(Map<String, int[]> population) {
+    for (RegionPopulation aggregate : mAggregates) {
+      if (aggregate != null) {
+        addCounts(population, PlantEntity.class, aggregate.countPlantsByStage());
+        addCounts(population, BunnyEntity.class, aggregate.countBunniesByStage());
+      }
+    }
+  }
+
+  private static void addCounts(Map<String, int[]> population, Class<? extends Entity> species,
+                                int[] counts) {
+    int[] total = population.computeIfAbsent(species.getSimpleName(), s -> new int[counts.length]);
+    for (int i = 0; i < counts.length; i++) {
+      total[i] += counts[i];
+    }
+  }
+
+  /**
+   * @return a copy for {@param map}, a fork of this one's map.
+   */
+  LevelOfDetail copyFor(WorldMap map) {
+    LevelOfDetail copy = new LevelOfDetail(map);
+    for (int region = 0; region < mAggregates.length; region++) {
+      if (mAggregates[region] != null) {
+        copy.mAggregates[region] = mAggregates[region].copyFor(map);
+      }
+    }
+    return copy;
+  }
+
+  /**
+   * Writes the aggregated regions and their populations, see {@link #readFrom(DataInput)}.
+   */
+  void writeTo(DataOutput out) throws IOException {
+    int count = 0;
+    for (RegionPopulation aggregate : mAggregates) {
+      count += aggregate != null ? 1 : 0;
+    }
+    out.writeInt(count);
+    for (int region = 0; region < mAggregates.length; region++) {
+      if (mAggregates[region] != null) {
+        out.writeInt(region);
+        mAggregates[region].writeTo(out);
+      }
+    }
+  }
+
+  /**
+   * Aggregates the regions written by {@link #writeTo(DataOutput)}, which must hold no entities,
+   * with the written populations.
+   */
+  void readFrom(DataInput in) throws IOException {
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      int region = in.readInt();
+      if (region < 0 || region >= mAggregates.length) {
+        throw new IOException("No region " + region);
+      }
+      mAggregates[region] = aggregate(region);
+      mAggregates[region].readFrom(in);
+    }
+  }
+}
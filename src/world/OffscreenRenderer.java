@@ -0,0 +1,111 @@
+package world;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Draws a map into images without any window, e.g. on servers without a display. Draws the same
+ * picture as {@link WorldVisualizer} for one elevation slice, filling the whole image.
+ * <p>
+ * {@link #render()} draws the map as it is now. To draw on another thread while the simulation
+ * moves on, {@link #capture()} the frame on the thread updating the map and {@link #draw} it
+ * anywhere.
+ */
+public class OffscreenRenderer {
+  private final WorldMap mMap;
+  private final int mWidth;
+  private final int mHeight;
+  private final RasterRenderer mRenderer;
+
+  private int mElevation;
+  private boolean mSeeAllBelow = true;
+
+  // terrain of the slice, redrawn when the slice or the terrain changes
+  private int[] mTerrainLayer;
+  private int mTerrainLayerVersion;
+
+  /**
+   * @throws IllegalArgumentException if the map has more tiles in a direction than the image has
+   *                                  pixels.
+   */
+  public OffscreenRenderer(WorldMap map, int width, int height) {
+    mMap = map;
+    mWidth = width;
+    mHeight = height;
+    mRenderer = RasterRenderer.fitting(map, width, height, 0, 0, null);
+    mElevation = map.getMaxHeight();
+  }
+
+  public int getWidth() {
+    return mWidth;
+  }
+
+  public int getHeight() {
+    return mHeight;
+  }
+
+  /**
+   * Shows only tiles at {@param elevation}, or at or below it if {@param seeAllBelow}. By default
+   * all tiles are shown.
+   */
+  public void setElevationSlice(int elevation, boolean seeAllBelow) {
+    if (elevation != mElevation || seeAllBelow != mSeeAllBelow) {
+      mTerrainLayer = null;
+    }
+    mElevation = elevation;
+    mSeeAllBelow = seeAllBelow;
+  }
+
+  /**
+   * @return a new image of the map as it is now.
+   */
+  public BufferedImage render() {
+    return draw(capture());
+  }
+
+  /**
+   * Records what to draw, must be called on the thread updating the map.
+   */
+  Frame capture() {
+    if (mTerrainLayer == null || mTerrainLayerVersion != mMap.getTerrainVersion()) {
+      // frames in flight keep the layer they were captured with
+      mTerrainLayer = new int[mWidth * mHeight];
+      mRenderer.drawTerrain(mTerrainLayer, mElevation, mSeeAllBelow);
+      mTerrainLayerVersion = mMap.getTerrainVersion();
+    }
+    RenderSnapshot snapshot = new RenderSnapshot();
+    mRenderer.capture(snapshot);
+    return new Frame(snapshot, mTerrainLayer, mElevation, mSeeAllBelow);
+  }
+
+  /**
+   * @return a new image of {@param frame}. Safe to call from any thread.
+   */
+  BufferedImage draw(Frame frame) {
+    BufferedImage image = new BufferedImage(mWidth, mHeight, BufferedImage.TYPE_INT_RGB);
+    mRenderer.drawSnapshot(frame.mTerrainLayer, RasterRenderer.pixelsOf(image), frame.mSnapshot,
+                           frame.mElevation, frame.mSeeAllBelow);
+    return image;
+  }
+
+  /**
+   * Everything needed to draw the map as it was at one tick.
+   */
+  static final class Frame {
+    private final RenderSnapshot mSnapshot;
+    private final int[] mTerrainLayer;
+    private final int mElevation;
+    private final boolean mSeeAllBelow;
+
+    private Frame(RenderSnapshot snapshot, int[] terrainLayer, int elevation,
+                  boolean seeAllBelow) {
+      mSnapshot = snapshot;
+      mTerrainLayer = terrainLayer;
+      mElevation = elevation;
+      mSeeAllBelow = seeAllBelow;
+    }
+
+    long getTick() {
+      return mSnapshot.getTick();
+    }
+  }
+}
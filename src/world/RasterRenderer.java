@@ -0,0 +1,349 @@
+package world;
+
+import entity.api.Entity;
+import entity.api.Traits;
+import entity.entities.PlantEntity;
+import entity.entities.PlantPopulation;
+import util.Rect2d;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Draws a map by writing packed RGB values straight into the pixels of a
+ * {@link BufferedImage#TYPE_INT_RGB} image, see {@link #pixelsOf}.
+ * <p>
+ * Tile colors come from a table over (terrain type, elevation), rebuilt when the terrain changes.
+ * Entities are drawn once per distinct look ({@link Entity#getSpriteKey()}) into a tile sized
+ * sprite with their own {@link Entity#draw}, which is then copied wherever an entity looks like
+ * that. Drawing the whole map is split into horizontal bands run on a fork-join pool.
+ */
+final class RasterRenderer {
+  private static final int BACKGROUND = 0xFFFFFF;
+  // terrain types with a row in the color table
+  private static final int[] TERRAIN_TYPES = {TerrainType.GROUND, TerrainType.WATER};
+  // rows of tiles per band when drawing the whole map
+  private static final int BAND_TILES = 8;
+
+  private final WorldMap mMap;
+  private final int mImageWidth;
+  private final int mImageHeight;
+  private final int mXStart;
+  private final int mYStart;
+  private final int mXBlock;
+  private final int mYBlock;
+  private final ForkJoinPool mPool;
+
+  // packed color per (terrain type, elevation), for the terrain version it was built at
+  private int[] mTileColors;
+  private int mTileColorsMaxHeight;
+  private int mTileColorsVersion;
+
+  // Entity sprites by (drawing class, sprite key). Sprites are ARGB, transparent where the entity
+  // does not draw.
+  private final Map<Long, int[]> mSprites = new ConcurrentHashMap<>();
+  private final Map<Class<?>, Integer> mSpriteClasses = new ConcurrentHashMap<>();
+  private final AtomicInteger mNextSpriteClass = new AtomicInteger();
+
+  /**
+   * @param xStart x of the first tile row on screen, tiles are {@param xBlock} wide
+   * @param yStart y of the first tile column on screen, tiles are {@param yBlock} high
+   * @param pool   runs the bands of full redraws, or null to draw on the calling thread
+   */
+  RasterRenderer(WorldMap map, int imageWidth, int imageHeight, int xStart, int yStart,
+                 int xBlock, int yBlock, ForkJoinPool pool) {
+    mMap = map;
+    mImageWidth = imageWidth;
+    mImageHeight = imageHeight;
+    mXStart = xStart;
+    mYStart = yStart;
+    mXBlock = xBlock;
+    mYBlock = yBlock;
+    mPool = pool;
+    mTileColorsVersion = map.getTerrainVersion() - 1;
+  }
+
+  /**
+   * Creates a renderer laying the map out centered in the image, keeping {@param margin} pixels
+   * free around it and {@param topReserved} more above it.
+   *
+   * @throws IllegalArgumentException if the image is too small to give every tile a pixel.
+   */
+  static RasterRenderer fitting(WorldMap map, int imageWidth, int imageHeight, int margin,
+                                int topReserved, ForkJoinPool pool) {
+    int xBlock = (imageWidth - 2 * margin) / map.getWidth();
+    int yBlock = (imageHeight - 2 * margin - topReserved) / map.getHeight();
+    if (xBlock < 1 || yBlock < 1) {
+      throw new IllegalArgumentException(
+          imageWidth + "x" + imageHeight + " is too small for a " + map.getWidth() + "x"
+          + map.getHeight() + " map");
+    }
+    int xStart = (imageWidth - xBlock * map.getWidth()) / 2;
+    int yStart = (imageHeight - yBlock * map.getHeight()) / 2 + topReserved;
+    return new RasterRenderer(
+        map, imageWidth, imageHeight, xStart, yStart, xBlock, yBlock, pool);
+  }
+
+  /**
+   * @return the pixel array backing {@param image}, which must be {@link
+   * BufferedImage#TYPE_INT_RGB}. Writing to it bypasses Java2D's acceleration of the image.
+   */
+  static int[] pixelsOf(BufferedImage image) {
+    return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+  }
+
+  /**
+   * Fills {@param dst} with the terrain of the slice, background elsewhere.
+   */
+  void drawTerrain(int[] dst, int elevation, boolean seeAllBelow) {
+    updateTileColors();
+    Arrays.fill(dst, 0, mImageWidth * mImageHeight, BACKGROUND);
+    inBands((c0, c1) -> {
+      for (int c = c0; c < c1; c++) {
+        for (int r = 0; r < mMap.getWidth(); r++) {
+          if (isInSlice(r, c, elevation, seeAllBelow)) {
+            fillTile(dst, r, c, tileColor(r, c));
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Draws the entities on every tile of the slice over what is in {@param dst}.
+   */
+  void drawEntities(int[] dst, int elevation, boolean seeAllBelow) {
+    inBands((c0, c1) -> drawEntities(dst, 0, c0, mMap.getWidth(), c1, elevation, seeAllBelow));
+  }
+
+  /**
+   * Restores tiles [r0, r1) x [c0, c1) from {@param terrainLayer}, as drawn by
+   * {@link #drawTerrain}, and draws their entities on top.
+   */
+  void redrawTiles(int[] terrainLayer, int[] dst, int r0, int c0, int r1, int c1, int elevation,
+                   boolean seeAllBelow) {
+    int x0 = mXStart + r0 * mXBlock;
+    int width = (r1 - r0) * mXBlock;
+    for (int y = mYStart + c0 * mYBlock; y < mYStart + c1 * mYBlock; y++) {
+      System.arraycopy(terrainLayer, y * mImageWidth + x0, dst, y * mImageWidth + x0, width);
+    }
+    drawEntities(dst, r0, c0, r1, c1, elevation, seeAllBelow);
+  }
+
+  /**
+   * Records the entities to draw into {@param snapshot}. Must run on the thread updating the map,
+   * the snapshot can then be drawn from any thread with {@link #drawSnapshot}.
+   */
+  void capture(RenderSnapshot snapshot) {
+    snapshot.reset(mMap.getTick());
+    int height = mMap.getHeight();
+    // same order as drawEntities(): plants, then non-occupying, then occupying entities
+    PlantPopulation plants = mMap.getPlantPopulation();
+    if (plants != null) {
+      for (int i = 0; i < plants.size(); i++) {
+        int tile = plants.getTile(i);
+        snapshot.add(tile, plantSprite(plants, tile / height, tile % height));
+      }
+    }
+    for (int pass = 0; pass < 2; pass++) {
+      boolean occupying = pass == 1;
+      for (Entity e : mMap.entityList) {
+        if (e instanceof Traits.SpaceOccupying == occupying) {
+          snapshot.add(e.getCurR() * height + e.getCurC(), entitySprite(e));
+        }
+      }
+    }
+  }
+
+  /**
+   * Copies {@param terrainLayer}, as drawn by {@link #drawTerrain}, to {@param dst} and draws the
+   * entities of {@param snapshot} that are in the slice on top.
+   */
+  void drawSnapshot(int[] terrainLayer, int[] dst, RenderSnapshot snapshot, int elevation,
+                    boolean seeAllBelow) {
+    System.arraycopy(terrainLayer, 0, dst, 0, mImageWidth * mImageHeight);
+    int height = mMap.getHeight();
+    for (int i = 0; i < snapshot.size(); i++) {
+      int r = snapshot.getTile(i) / height;
+      int c = snapshot.getTile(i) % height;
+      if (isInSlice(r, c, elevation, seeAllBelow)) {
+        drawSprite(dst, r, c, snapshot.getSprite(i));
+      }
+    }
+  }
+
+  private void drawEntities(int[] dst, int r0, int c0, int r1, int c1, int elevation,
+                            boolean seeAllBelow) {
+    PlantPopulation plants = mMap.getPlantPopulation();
+    for (int c = c0; c < c1; c++) {
+      for (int r = r0; r < r1; r++) {
+        if (!isInSlice(r, c, elevation, seeAllBelow)) {
+          continue;
+        }
+        if (plants != null && plants.hasPlantAt(r, c)) {
+          drawSprite(dst, r, c, plantSprite(plants, r, c));
+        }
+        drawEntity(dst, mMap.getNonOccupyingEntityAt(r, c));
+        drawEntity(dst, mMap.getOccupyingEntityAt(r, c));
+      }
+    }
+  }
+
+  private void drawEntity(int[] dst, Entity e) {
+    if (e != null) {
+      drawSprite(dst, e.getCurR(), e.getCurC(), entitySprite(e));
+    }
+  }
+
+  private int[] entitySprite(Entity e) {
+    int key = e.getSpriteKey();
+    long spriteId = spriteId(e.getClass(), key);
+    int[] sprite = key == Entity.NO_SPRITE_KEY ? null : mSprites.get(spriteId);
+    if (sprite == null) {
+      sprite = rasterize(g -> e.draw(g, new Rect2d(0, 0, mXBlock, mYBlock)));
+      if (key != Entity.NO_SPRITE_KEY) {
+        mSprites.put(spriteId, sprite);
+      }
+    }
+    return sprite;
+  }
+
+  private int[] plantSprite(PlantPopulation plants, int r, int c) {
+    int key = plants.getSpriteKey(r, c);
+    // stored plants look exactly like plant entities
+    long spriteId = spriteId(PlantEntity.class, key);
+    int[] sprite = key == Entity.NO_SPRITE_KEY ? null : mSprites.get(spriteId);
+    if (sprite == null) {
+      sprite = rasterize(g -> plants.draw(g, new Rect2d(0, 0, mXBlock, mYBlock), r, c));
+      if (key != Entity.NO_SPRITE_KEY) {
+        mSprites.put(spriteId, sprite);
+      }
+    }
+    return sprite;
+  }
+
+  private long spriteId(Class<?> drawingClass, int key) {
+    int classId = mSpriteClasses.computeIfAbsent(
+        drawingClass, k -> mNextSpriteClass.getAndIncrement());
+    return (long) classId << 32 | (key & 0xFFFFFFFFL);
+  }
+
+  private int[] rasterize(Painter painter) {
+    BufferedImage tile = new BufferedImage(mXBlock, mYBlock, BufferedImage.TYPE_INT_ARGB);
+    Graphics g = tile.getGraphics();
+    painter.paint(g);
+    g.dispose();
+    return ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+  }
+
+  private void drawSprite(int[] dst, int r, int c, int[] sprite) {
+    int x0 = mXStart + r * mXBlock;
+    int y0 = mYStart + c * mYBlock;
+    for (int j = 0; j < mYBlock; j++) {
+      int row = (y0 + j) * mImageWidth + x0;
+      int spriteRow = j * mXBlock;
+      for (int i = 0; i < mXBlock; i++) {
+        int pixel = sprite[spriteRow + i];
+        if (pixel >>> 24 != 0) {
+          dst[row + i] = pixel & 0xFFFFFF;
+        }
+      }
+    }
+  }
+
+  private void fillTile(int[] dst, int r, int c, int color) {
+    int x0 = mXStart + r * mXBlock;
+    int y0 = mYStart + c * mYBlock;
+    for (int j = 0; j < mYBlock; j++) {
+      int row = (y0 + j) * mImageWidth + x0;
+      Arrays.fill(dst, row, row + mXBlock, color);
+    }
+  }
+
+  private boolean isInSlice(int r, int c, int elevation, boolean seeAllBelow) {
+    return seeAllBelow
+           ? mMap.getElevation(r, c) <= elevation
+           : mMap.getElevation(r, c) == elevation;
+  }
+
+  private int tileColor(int r, int c) {
+    int terrain = mMap.getTerrainType(r, c);
+    int elevation = mMap.getElevation(r, c);
+    for (int t = 0; t < TERRAIN_TYPES.length; t++) {
+      if (TERRAIN_TYPES[t] == terrain && elevation >= 0 && elevation <= mTileColorsMaxHeight) {
+        return mTileColors[t * (mTileColorsMaxHeight + 1) + elevation];
+      }
+    }
+    return shade(terrain, elevation, mMap.getMaxHeight());
+  }
+
+  private void updateTileColors() {
+    if (mTileColorsVersion == mMap.getTerrainVersion()) {
+      return;
+    }
+    int maxHeight = mMap.getMaxHeight();
+    int[] colors = new int[TERRAIN_TYPES.length * (maxHeight + 1)];
+    for (int t = 0; t < TERRAIN_TYPES.length; t++) {
+      for (int e = 0; e <= maxHeight; e++) {
+        colors[t * (maxHeight + 1) + e] = shade(TERRAIN_TYPES[t], e, maxHeight);
+      }
+    }
+    mTileColors = colors;
+    mTileColorsMaxHeight = maxHeight;
+    mTileColorsVersion = mMap.getTerrainVersion();
+  }
+
+  // Terrain color darkened by elevation, lower is darker.
+  private static int shade(int terrain, int elevation, int maxHeight) {
+    float alpha = 0.75f * elevation / maxHeight;
+    Color terrainColor = TerrainType.getColorForType(terrain);
+    return (int) (alpha * terrainColor.getRed()) << 16
+           | (int) (alpha * terrainColor.getGreen()) << 8
+           | (int) (alpha * terrainColor.getBlue());
+  }
+
+  /**
+   * Runs {@param band} over bands of tile columns covering the map, on the pool if there is one.
+   */
+  private void inBands(Band band) {
+    int height = mMap.getHeight();
+    if (mPool == null || height <= BAND_TILES) {
+      band.draw(0, height);
+      return;
+    }
+    List<RecursiveAction> tasks = new ArrayList<>();
+    for (int c0 = 0; c0 < height; c0 += BAND_TILES) {
+      int from = c0;
+      int to = Math.min(height, c0 + BAND_TILES);
+      tasks.add(new RecursiveAction() {
+        @Override
+        protected void compute() {
+          band.draw(from, to);
+        }
+      });
+    }
+    mPool.invoke(new RecursiveAction() {
+      @Override
+      protected void compute() {
+        invokeAll(tasks);
+      }
+    });
+  }
+
+  private interface Band {
+    void draw(int c0, int c1);
+  }
+
+  private interface Painter {
+    void paint(Graphics g);
+  }
+}
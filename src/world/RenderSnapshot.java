@@ -0,0 +1,50 @@
+package world;
+
+import java.util.Arrays;
+
+/**
+ * What a map looked like after one tick: every drawn entity as its tile and sprite, in drawing
+ * order. Filled by {@link RasterRenderer#capture} on the thread running the simulation and not
+ * changed after being handed to the view, so it can be drawn while the simulation moves on.
+ */
+final class RenderSnapshot {
+  private long mTick;
+  private int mSize;
+  private int[] mTiles = new int[256];
+  private int[][] mSprites = new int[256][];
+
+  void reset(long tick) {
+    mTick = tick;
+    // drop sprite references so retired sprites can be collected
+    Arrays.fill(mSprites, 0, mSize, null);
+    mSize = 0;
+  }
+
+  void add(int tile, int[] sprite) {
+    if (mSize == mTiles.length) {
+      mTiles = Arrays.copyOf(mTiles, 2 * mSize);
+      mSprites = Arrays.copyOf(mSprites, 2 * mSize);
+    }
+    mTiles[mSize] = tile;
+    mSprites[mSize++] = sprite;
+  }
+
+  long getTick() {
+    return mTick;
+  }
+
+  int size() {
+    return mSize;
+  }
+
+  /**
+   * @return the tile of the {@param i}th drawn entity, as r * map height + c.
+   */
+  int getTile(int i) {
+    return mTiles[i];
+  }
+
+  int[] getSprite(int i) {
+    return mSprites[i];
+  }
+}
@@ -0,0 +1,148 @@
+package world;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Length prefixed messages over a non-blocking socket channel, between the processes of a sharded
+ * run, see {@link ShardCoordinator}. Messages are queued with {@link #send} and awaited with
+ * {@link #expect}, then moved by {@link #exchange}, which writes and reads on all of its channels
+ * at once. Two processes sending each other large messages never wait on each other that way.
+ */
+final class ShardChannel implements Closeable {
+  private final SocketChannel mChannel;
+  private final SelectionKey mKey;
+
+  private ByteBuffer mOut;
+  private boolean mExpecting;
+  private final ByteBuffer mLength = ByteBuffer.allocate(Integer.BYTES);
+  private ByteBuffer mIn;
+  private byte[] mReceived;
+
+  /**
+   * Takes over {@param channel}, which is made non-blocking and registered with
+   * {@param selector}. All channels passed to one {@link #exchange} call must share a selector.
+   */
+  ShardChannel(SocketChannel channel, Selector selector) throws IOException {
+    mChannel = channel;
+    // messages are small and answered right away, do not hold them back to batch them
+    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    channel.configureBlocking(false);
+    mKey = channel.register(selector, 0, this);
+  }
+
+  /**
+   * Queues {@param message}, the bytes written so far, to go out on the next {@link #exchange}.
+   */
+  void send(ByteArrayOutputStream message) {
+    mOut = ByteBuffer.allocate(Integer.BYTES + message.size());
+    mOut.putInt(message.size()).put(message.toByteArray()).flip();
+  }
+
+  /**
+   * Makes the next {@link #exchange} wait for a message on this channel.
+   */
+  void expect() {
+    mExpecting = true;
+    mReceived = null;
+  }
+
+  /**
+   * @return the message received by the last {@link #exchange}.
+   */
+  DataInputStream received() {
+    return new DataInputStream(new ByteArrayInputStream(mReceived));
+  }
+
+  /**
+   * @return bytes of the message received by the last {@link #exchange}.
+   */
+  int receivedSize() {
+    return mReceived.length;
+  }
+
+  /**
+   * Blocks until every queued message has been written and every expected one read.
+   */
+  static void exchange(ShardChannel... channels) throws IOException {
+    if (channels.length == 0) {
+      return;
+    }
+    Selector selector = channels[0].mKey.selector();
+    try {
+      while (true) {
+        boolean busy = false;
+        for (ShardChannel channel : channels) {
+          int ops = (channel.mOut != null ? SelectionKey.OP_WRITE : 0)
+                    | (channel.mExpecting ? SelectionKey.OP_READ : 0);
+          channel.mKey.interestOps(ops);
+          busy |= ops != 0;
+        }
+        if (!busy) {
+          return;
+        }
+        selector.select();
+        for (SelectionKey key : selector.selectedKeys()) {
+          ShardChannel channel = (ShardChannel) key.attachment();
+          if (key.isWritable()) {
+            channel.write();
+          }
+          if (key.isReadable()) {
+            channel.read();
+          }
+        }
+        selector.selectedKeys().clear();
+      }
+    } finally {
+      // channels left out of the next exchange must not wake it up
+      for (ShardChannel channel : channels) {
+        if (channel.mKey.isValid()) {
+          channel.mKey.interestOps(0);
+        }
+      }
+    }
+  }
+
+  private void write() throws IOException {
+    mChannel.write(mOut);
+    if (!mOut.hasRemaining()) {
+      mOut = null;
+    }
+  }
+
+  private void read() throws IOException {
+    if (mIn == null) {
+      if (mChannel.read(mLength) < 0) {
+        throw new EOFException("Shard connection closed");
+      }
+      if (mLength.hasRemaining()) {
+        return;
+      }
+      mIn = ByteBuffer.allocate(mLength.flip().getInt());
+      mLength.clear();
+    }
+    if (mIn.hasRemaining() && mChannel.read(mIn) < 0) {
+      throw new EOFException("Shard connection closed");
+    }
+    if (!mIn.hasRemaining()) {
+      mReceived = mIn.array();
+      mIn = null;
+      mExpecting = false;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    mKey.cancel();
+    mChannel.close();
+  }
+}
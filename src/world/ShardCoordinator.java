@@ -0,0 +1,315 @@
+package world;
+
+import entity.api.Entity;
+import util.MetricsRegistry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a map split across worker processes on this machine, one {@link ShardWorker} per strip of
+ * rows. The workers tick in lockstep, trading the entities along their edges after every tick,
+ * and report their populations to the coordinator, which sums them up.
+ * <p>
+ * Runs with the same map and shard count are identical, but differ from running the map in one
+ * process: entities near a strip edge see copies of their neighbors that lag a tick behind, when
+ * two entities move onto the same tile from either side of an edge the one crossing it lands on a
+ * free tile close by instead, and a bunny mating across an edge only pays for it on its own side.
+ * Compact plants and aggregated regions are not supported.
+ */
+public class ShardCoordinator implements Closeable {
+  // Longest the workers may take to start and connect
+  private static final long CONNECT_TIMEOUT_MILLIS = 30_000;
+
+  // Terrain file the workers map, alone in a directory of its own
+  private final Path mTerrain;
+  private final List<Process> mWorkers = new ArrayList<>();
+  private final Selector mSelector;
+  private final ShardChannel[] mChannels;
+
+  private long mTick;
+  private Map<String, Integer> mPopulation = new TreeMap<>();
+  private final MetricsRegistry mRegistry = new MetricsRegistry();
+  private final MetricsRegistry.Counter mMigrations = mRegistry.counter("shards.migrations");
+  private final MetricsRegistry.Counter mDisplacedMigrants =
+      mRegistry.counter("shards.displacedMigrants");
+  private final MetricsRegistry.Counter mLostMigrants = mRegistry.counter("shards.lostMigrants");
+  private final MetricsRegistry.Counter mHaloBytes = mRegistry.counter("shards.haloBytes");
+  private final MetricsRegistry.Histogram mTickNanos = mRegistry.histogram("shards.tickNanos");
+
+  /**
+   * Starts {@param shards} workers and hands each a strip of {@param map} with its entities. The
+   * map itself is left as it is and no longer advanced.
+   *
+   * @throws IllegalArgumentException if the map uses compact plants or aggregated regions, or is
+   *     too narrow for that many strips.
+   */
+  public ShardCoordinator(WorldMap map, int shards) throws IOException {
+    if (map.getPlantPopulation() != null) {
+      throw new IllegalArgumentException("Sharded maps cannot use compact plants");
+    }
+    if (map.getLevelOfDetail() != null) {
+      throw new IllegalArgumentException("Sharded maps cannot aggregate regions");
+    }
+    if (shards < 1 || map.getWidth() / shards < ShardWorker.HALO) {
+      throw new IllegalArgumentException(
+          "Cannot split " + map.getWidth() + " rows into " + shards + " shards");
+    }
+    mTerrain = Files.createTempDirectory("shards").resolve(map.getMapId() + ".world");
+    map.save(mTerrain);
+    mSelector = Selector.open();
+    mChannels = new ShardChannel[shards];
+    try {
+      int[] ports = connect(shards);
+      setUp(map, ports);
+    } catch (IOException | RuntimeException e) {
+      close();
+      throw e;
+    }
+  }
+
+  // Starts the workers and waits for each to connect and say where it listens.
+  private int[] connect(int shards) throws IOException {
+    InetAddress host = InetAddress.getLoopbackAddress();
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      server.bind(new InetSocketAddress(host, 0));
+      server.configureBlocking(false);
+      SelectionKey accepting = server.register(mSelector, SelectionKey.OP_ACCEPT);
+      String port = Integer.toString(((InetSocketAddress) server.getLocalAddress()).getPort());
+      String java = System.getProperty("java.home") + File.separator + "bin" + File.separator
+                    + "java";
+      for (int i = 0; i < shards; i++) {
+        mWorkers.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                                        ShardWorker.class.getName(), port)
+                         .inheritIO()
+                         .start());
+      }
+
+      // strips go to the workers in the order they connect
+      long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+      int connected = 0;
+      while (connected < shards) {
+        for (Process worker : mWorkers) {
+          if (!worker.isAlive()) {
+            throw new IOException("Shard worker exited with " + worker.exitValue());
+          }
+        }
+        if (System.currentTimeMillis() > deadline) {
+          throw new IOException("Timed out waiting for shard workers");
+        }
+        mSelector.select(100);
+        mSelector.selectedKeys().clear();
+        SocketChannel channel;
+        while (connected < shards && (channel = server.accept()) != null) {
+          mChannels[connected++] = new ShardChannel(channel, mSelector);
+        }
+      }
+      accepting.cancel();
+    }
+
+    for (ShardChannel channel : mChannels) {
+      channel.expect();
+    }
+    ShardChannel.exchange(mChannels);
+    int[] ports = new int[shards];
+    for (int i = 0; i < shards; i++) {
+      ports[i] = mChannels[i].received().readInt();
+    }
+    return ports;
+  }
+
+  /**
+   * Sends every worker its strip of the map, the entities on it, and a random stream of its own.
+   */
+  private void setUp(WorldMap map, int[] ports) throws IOException {
+    int shards = mChannels.length;
+    int[] fromR = new int[shards + 1];
+    for (int i = 0; i <= shards; i++) {
+      fromR[i] = (int) ((long) i * map.getWidth() / shards);
+    }
+    List<List<Entity>> entities = new ArrayList<>();
+    for (int i = 0; i < shards; i++) {
+      entities.add(new ArrayList<>());
+    }
+    for (Entity e : map.entityList) {
+      // strips are about the same size, so the guess is at most one off
+      int shard = Math.min((int) ((long) e.getCurR() * shards / map.getWidth()), shards - 1);
+      while (e.getCurR() < fromR[shard]) {
+        shard--;
+      }
+      while (e.getCurR() >= fromR[shard + 1]) {
+        shard++;
+      }
+      entities.get(shard).add(e);
+    }
+
+    for (int i = 0; i < shards; i++) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeUTF(mTerrain.toAbsolutePath().toString());
+      out.writeInt(fromR[i]);
+      out.writeInt(fromR[i + 1]);
+      out.writeInt(i > 0 ? ports[i - 1] : -1);
+      out.writeBoolean(i < shards - 1);
+      out.writeLong(map.getTick());
+      out.writeInt(map.getCorpseDecayTicks());
+      map.getConfig().writeTo(out);
+      out.writeLong(map.getSeed());
+      map.splitRandom().writeState(out);
+      out.writeInt(entities.get(i).size());
+      for (Entity e : entities.get(i)) {
+        WorldSnapshot.writeEntity(e, out);
+      }
+      out.flush();
+      mChannels[i].send(bytes);
+      // the workers are ready once they have traded their first halos
+      mChannels[i].expect();
+    }
+    ShardChannel.exchange(mChannels);
+    mTick = map.getTick();
+  }
+
+  /**
+   * Runs {@param ticks} ticks on all workers.
+   */
+  public void run(long ticks) throws IOException {
+    run(ticks, (int) Math.min(ticks, Integer.MAX_VALUE));
+  }
+
+  /**
+   * Runs {@param ticks} ticks on all workers, collecting their statistics every
+   * {@param reportTicks} ticks.
+   */
+  public void run(long ticks, int reportTicks) throws IOException {
+    if (ticks <= 0) {
+      return;
+    }
+    for (ShardChannel channel : mChannels) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(ShardWorker.RUN);
+      out.writeLong(ticks);
+      out.writeInt(reportTicks);
+      out.flush();
+      channel.send(bytes);
+    }
+    ShardChannel.exchange(mChannels);
+
+    for (long done = 0; done < ticks; ) {
+      long block = Math.min(reportTicks, ticks - done);
+      long start = System.nanoTime();
+      for (ShardChannel channel : mChannels) {
+        channel.expect();
+      }
+      ShardChannel.exchange(mChannels);
+      long elapsed = System.nanoTime() - start;
+      mTickNanos.record(elapsed / block);
+      collectReports();
+      done += block;
+    }
+  }
+
+  // Sums up the reports the workers sent for the last block of ticks.
+  private void collectReports() throws IOException {
+    Map<String, Integer> population = new TreeMap<>();
+    for (ShardChannel channel : mChannels) {
+      DataInputStream in = channel.received();
+      mTick = in.readLong();
+      int species = in.readInt();
+      for (int i = 0; i < species; i++) {
+        population.merge(in.readUTF(), in.readInt(), Integer::sum);
+      }
+      mMigrations.add(in.readLong());
+      mDisplacedMigrants.add(in.readLong());
+      mLostMigrants.add(in.readLong());
+      mHaloBytes.add(in.readLong());
+    }
+    for (String name : population.keySet()) {
+      if (!mPopulation.containsKey(name)) {
+        mRegistry.gauge("population." + name,
+                        () -> mPopulation.getOrDefault(name, 0).longValue());
+      }
+    }
+    mPopulation = population;
+  }
+
+  /**
+   * @return the tick the workers are at.
+   */
+  public long getTick() {
+    return mTick;
+  }
+
+  /**
+   * @return number of living entities on all workers at the last report, keyed by entity type.
+   */
+  public Map<String, Integer> getPopulation() {
+    return mPopulation;
+  }
+
+  /**
+   * @return what crossed strip edges, time per tick, and population gauges.
+   */
+  public MetricsRegistry getRegistry() {
+    return mRegistry;
+  }
+
+  /**
+   * Stops the workers and deletes the terrain file they shared.
+   */
+  @Override
+  public void close() throws IOException {
+    for (ShardChannel channel : mChannels) {
+      if (channel == null) {
+        continue;
+      }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      new DataOutputStream(bytes).writeByte(ShardWorker.STOP);
+      channel.send(bytes);
+    }
+    try {
+      for (ShardChannel channel : mChannels) {
+        if (channel != null) {
+          ShardChannel.exchange(channel);
+        }
+      }
+    } catch (IOException e) {
+      // a worker already gone needs no stopping
+    }
+    for (ShardChannel channel : mChannels) {
+      if (channel != null) {
+        channel.close();
+      }
+    }
+    mSelector.close();
+    for (Process worker : mWorkers) {
+      try {
+        if (!worker.waitFor(10, TimeUnit.SECONDS)) {
+          worker.destroyForcibly();
+        }
+      } catch (InterruptedException e) {
+        worker.destroyForcibly();
+        Thread.currentThread().interrupt();
+      }
+    }
+    Files.deleteIfExists(mTerrain);
+    Files.deleteIfExists(mTerrain.getParent());
+  }
+}
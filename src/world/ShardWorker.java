@@ -0,0 +1,335 @@
+package world;
+
+import entity.api.Entity;
+import util.RandomStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * One process of a sharded run, started by {@link ShardCoordinator}. Simulates the entities of a
+ * strip of rows of the map, in lockstep with the workers of the strips above and below.
+ * <p>
+ * Every worker maps the whole terrain from a shared {@link WorldFile} and works in the map's own
+ * coordinates, paying only for the pages it touches. After every tick a worker hands each neighbor
+ * the entities that left its strip towards it, and copies of its entities in the {@link #HALO}
+ * rows along their shared edge. The neighbor places the copies as ghosts, which its entities see
+ * on their tiles but which are never updated. The halo covers the furthest an entity reaches in a
+ * tick: seeds spread up to 3 tiles away.
+ * <p>
+ * Usage: ShardWorker coordinatorPort
+ */
+public class ShardWorker implements Closeable {
+  static final int HALO = 3;
+
+  // Messages from the coordinator, after setup
+  static final byte RUN = 1;
+  static final byte STOP = 2;
+
+  private final Selector mSelector;
+  private final ShardChannel mCoordinator;
+  private final WorldMap mMap;
+  // Rows of the strip, from mFromR up to but not including mToR
+  private final int mFromR;
+  private final int mToR;
+  // Workers of the strips above and below, null at the edges of the map
+  private final ShardChannel mNorth;
+  private final ShardChannel mSouth;
+
+  private final List<Entity> mGhosts = new ArrayList<>();
+  // Entities in the HALO rows inside the strip edges after the last exchange. Entities that leave
+  // the strip were here before, unless they were born or seeded during the tick.
+  private final Set<Entity> mEdgeEntities = Collections.newSetFromMap(new IdentityHashMap<>());
+
+  // Counted since the last report
+  private long mMigrations;
+  private long mDisplacedMigrants;
+  private long mLostMigrants;
+  private long mHaloBytes;
+
+  public static void main(String[] args) throws IOException {
+    System.setProperty("java.awt.headless", "true");
+    try (ShardWorker worker = new ShardWorker(Integer.parseInt(args[0]))) {
+      worker.serve();
+    }
+  }
+
+  /**
+   * Connects to the coordinator, receives the strip and its entities, and connects to the
+   * neighboring workers.
+   */
+  private ShardWorker(int coordinatorPort) throws IOException {
+    InetAddress host = InetAddress.getLoopbackAddress();
+    mSelector = Selector.open();
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      server.bind(new InetSocketAddress(host, 0));
+      mCoordinator = new ShardChannel(
+          SocketChannel.open(new InetSocketAddress(host, coordinatorPort)), mSelector);
+      // tell the coordinator where the worker below should connect to
+      ByteArrayOutputStream hello = new ByteArrayOutputStream();
+      int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+      new DataOutputStream(hello).writeInt(port);
+      mCoordinator.send(hello);
+      mCoordinator.expect();
+      ShardChannel.exchange(mCoordinator);
+
+      DataInputStream in = mCoordinator.received();
+      mMap = WorldMap.load(Paths.get(in.readUTF()));
+      mFromR = in.readInt();
+      mToR = in.readInt();
+      int northPort = in.readInt();
+      boolean hasSouth = in.readBoolean();
+      mMap.setTick(in.readLong());
+      mMap.setCorpseDecayTicks(in.readInt());
+      mMap.setConfig(WorldConfig.readFrom(in));
+      long seed = in.readLong();
+      RandomStream random = new RandomStream(seed);
+      random.readState(in);
+      WorldSnapshot.readEntities(mMap, in);
+      // last, restoring entities may have drawn from the map's stream
+      mMap.setRandom(seed, random);
+
+      // connect up before accepting from below, so no worker waits on one further down
+      mNorth = northPort >= 0
+               ? new ShardChannel(
+                   SocketChannel.open(new InetSocketAddress(host, northPort)), mSelector)
+               : null;
+      mSouth = hasSouth ? new ShardChannel(server.accept(), mSelector) : null;
+    }
+    exchangeHalo();
+    // ready, an empty message
+    mCoordinator.send(new ByteArrayOutputStream());
+    ShardChannel.exchange(mCoordinator);
+  }
+
+  // Runs what the coordinator asks for until it says stop.
+  private void serve() throws IOException {
+    while (true) {
+      mCoordinator.expect();
+      ShardChannel.exchange(mCoordinator);
+      DataInputStream in = mCoordinator.received();
+      if (in.readByte() == STOP) {
+        return;
+      }
+      long ticks = in.readLong();
+      int reportTicks = in.readInt();
+      for (long done = 0; done < ticks; ) {
+        long block = Math.min(reportTicks, ticks - done);
+        for (long t = 0; t < block; t++) {
+          mMap.updateEntities();
+          exchangeHalo();
+        }
+        done += block;
+        report();
+      }
+    }
+  }
+
+  /**
+   * Hands entities that left the strip to their new worker, and refreshes the ghosts in the halo
+   * rows from the neighbors.
+   */
+  private void exchangeHalo() throws IOException {
+    for (Entity ghost : mGhosts) {
+      mMap.removeGhost(ghost);
+    }
+    mGhosts.clear();
+    // with the ghosts gone, whatever is left in the halo rows left the strip this tick
+    List<Entity> edgeEntities = new ArrayList<>();
+    if (mNorth != null) {
+      mNorth.send(haloMessage(mFromR - HALO, mFromR + HALO, edgeEntities));
+      mNorth.expect();
+    }
+    if (mSouth != null) {
+      mSouth.send(haloMessage(mToR + HALO - 1, mToR - HALO - 1, edgeEntities));
+      mSouth.expect();
+    }
+    mEdgeEntities.clear();
+    mEdgeEntities.addAll(edgeEntities);
+    if (mNorth != null && mSouth != null) {
+      ShardChannel.exchange(mNorth, mSouth);
+    } else if (mNorth != null || mSouth != null) {
+      ShardChannel.exchange(mNorth != null ? mNorth : mSouth);
+    }
+    // north first, so every worker applies its neighbors in the same order
+    if (mNorth != null) {
+      applyHaloMessage(mNorth);
+    }
+    if (mSouth != null) {
+      applyHaloMessage(mSouth);
+    }
+  }
+
+  /**
+   * @param haloR the halo row furthest from the strip
+   * @param edgeR the first row on the other side of the strip edge, past the rows to copy
+   * @param edgeEntities gets the entities copied, which are on the rows inside the edge
+   */
+  private ByteArrayOutputStream haloMessage(int haloR, int edgeR, List<Entity> edgeEntities)
+      throws IOException {
+    // the halo lies on the other side of the edge, going towards edgeR
+    int step = haloR < edgeR ? 1 : -1;
+    int edge = haloR + step * HALO;
+    List<Entity> leaving = entitiesInRows(haloR, edge, step);
+    List<Entity> copies = entitiesInRows(edge, edgeR, step);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(leaving.size());
+    for (Entity e : leaving) {
+      // whether it moved across the edge, rather than being born or seeded across it
+      out.writeBoolean(mEdgeEntities.contains(e));
+      WorldSnapshot.writeEntity(e, out);
+      mMap.removeEntity(e);
+    }
+    out.writeInt(copies.size());
+    for (Entity e : copies) {
+      WorldSnapshot.writeEntity(e, out);
+    }
+    out.flush();
+    mMigrations += leaving.size();
+    edgeEntities.addAll(copies);
+    return bytes;
+  }
+
+  // Entities on the rows from fromR up to toR, exclusive, going by step.
+  private List<Entity> entitiesInRows(int fromR, int toR, int step) {
+    List<Entity> entities = new ArrayList<>();
+    for (int r = fromR; r != toR; r += step) {
+      if (r < 0 || r >= mMap.getWidth()) {
+        continue;
+      }
+      for (int c = 0; c < mMap.getHeight(); c++) {
+        Entity nonOccupying = mMap.getNonOccupyingEntityAt(r, c);
+        if (nonOccupying != null) {
+          entities.add(nonOccupying);
+        }
+        Entity occupying = mMap.getOccupyingEntityAt(r, c);
+        if (occupying != null) {
+          entities.add(occupying);
+        }
+      }
+    }
+    return entities;
+  }
+
+  private void applyHaloMessage(ShardChannel neighbor) throws IOException {
+    mHaloBytes += neighbor.receivedSize();
+    DataInputStream in = neighbor.received();
+    int arrivals = in.readInt();
+    for (int i = 0; i < arrivals; i++) {
+      boolean crossed = in.readBoolean();
+      addMigrant(WorldSnapshot.readEntity(mMap, in), crossed);
+    }
+    int ghosts = in.readInt();
+    for (int i = 0; i < ghosts; i++) {
+      Entity ghost = WorldSnapshot.readEntity(mMap, in);
+      if (mMap.placeGhost(ghost)) {
+        mGhosts.add(ghost);
+      }
+    }
+  }
+
+  /**
+   * Adds {@param migrant} on its tile. If an entity of this strip took that in the same tick, a
+   * migrant that {@param crossed} the edge goes to the nearest free tile of the strip with the same
+   * terrain, up to {@link #HALO} tiles away. Tiles are tried ring by ring around the taken one, in
+   * a fixed order, so every run settles the conflict the same way. Seeds and newborns are dropped,
+   * as they would have been on a taken tile in a single process.
+   */
+  private void addMigrant(Entity migrant, boolean crossed) {
+    if (mMap.addEntity(migrant, false /* isNewborn */)) {
+      // it may move back across the edge next tick
+      mEdgeEntities.add(migrant);
+      return;
+    }
+    if (!crossed) {
+      mLostMigrants++;
+      return;
+    }
+    int fromR = migrant.getCurR();
+    int fromC = migrant.getCurC();
+    int terrain = mMap.getTerrainType(fromR, fromC);
+    for (int radius = 1; radius <= HALO; radius++) {
+      for (int dr = -radius; dr <= radius; dr++) {
+        // the first and last row of the ring in full, the two ends of the rows in between
+        int dcStep = dr == -radius || dr == radius ? 1 : 2 * radius;
+        for (int dc = -radius; dc <= radius; dc += dcStep) {
+          int r = fromR + dr;
+          int c = fromC + dc;
+          if (r < mFromR || r >= mToR || c < 0 || c >= mMap.getHeight()
+              || mMap.getTerrainType(r, c) != terrain) {
+            continue;
+          }
+          migrant.setPosition(r, c);
+          if (mMap.addEntity(migrant, false /* isNewborn */)) {
+            mDisplacedMigrants++;
+            mEdgeEntities.add(migrant);
+            return;
+          }
+        }
+      }
+    }
+    mLostMigrants++;
+  }
+
+  /**
+   * Sends the coordinator the strip's population and what crossed its edges since the last
+   * report.
+   */
+  private void report() throws IOException {
+    Map<String, Integer> population = new TreeMap<>();
+    for (Entity e : mMap.entityList) {
+      if (e.getHealth() > 0) {
+        population.merge(e.getClass().getSimpleName(), 1, Integer::sum);
+      }
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeLong(mMap.getTick());
+    out.writeInt(population.size());
+    for (Map.Entry<String, Integer> entry : population.entrySet()) {
+      out.writeUTF(entry.getKey());
+      out.writeInt(entry.getValue());
+    }
+    out.writeLong(mMigrations);
+    out.writeLong(mDisplacedMigrants);
+    out.writeLong(mLostMigrants);
+    out.writeLong(mHaloBytes);
+    out.flush();
+    mMigrations = 0;
+    mDisplacedMigrants = 0;
+    mLostMigrants = 0;
+    mHaloBytes = 0;
+    mCoordinator.send(bytes);
+    ShardChannel.exchange(mCoordinator);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (mNorth != null) {
+      mNorth.close();
+    }
+    if (mSouth != null) {
+      mSouth.close();
+    }
+    mCoordinator.close();
+    mSelector.close();
+  }
+}
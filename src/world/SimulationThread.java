@@ -0,0 +1,130 @@
+package world;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a map's ticks on a thread of its own and hands what to draw to a view as
+ * {@link RenderSnapshot}s. Once started, only this thread may touch the map's entities.
+ * <p>
+ * Snapshots are double buffered: the view draws one while the next is filled. A new snapshot is
+ * only captured once the view has taken the previous one, so ticks the view cannot keep up with
+ * are simply never drawn and cost nothing extra.
+ */
+final class SimulationThread extends Thread {
+  private static final long POLL_NANOS = 1_000_000;
+
+  private final WorldMap mMap;
+  private final RasterRenderer mRenderer;
+  // 0 runs as fast as possible
+  private final long mNanosPerTick;
+
+  private volatile boolean mPlaying;
+  private volatile boolean mStopped;
+  private final AtomicInteger mStepsRequested = new AtomicInteger();
+
+  // latest snapshot not yet taken by the view, and a drawn one to reuse
+  private final AtomicReference<RenderSnapshot> mReady = new AtomicReference<>();
+  private final AtomicReference<RenderSnapshot> mSpare = new AtomicReference<>();
+  private long mPublishedTick = -1;
+
+  /**
+   * @param ticksPerSecond target rate while playing, or 0 to run at full speed.
+   */
+  SimulationThread(WorldMap map, RasterRenderer renderer, double ticksPerSecond) {
+    super("simulation-" + map.getMapId());
+    setDaemon(true);
+    mMap = map;
+    mRenderer = renderer;
+    mNanosPerTick = ticksPerSecond > 0 ? (long) (1e9 / ticksPerSecond) : 0;
+  }
+
+  void play() {
+    mPlaying = true;
+    LockSupport.unpark(this);
+  }
+
+  void pause() {
+    mPlaying = false;
+  }
+
+  /**
+   * Runs a single tick, meant for while paused.
+   */
+  void step() {
+    mStepsRequested.incrementAndGet();
+    LockSupport.unpark(this);
+  }
+
+  void shutdown() {
+    mStopped = true;
+    LockSupport.unpark(this);
+  }
+
+  /**
+   * Called by the view to get the newest snapshot.
+   *
+   * @param drawn the snapshot the view is done with, may be null
+   * @return the snapshot captured since the last call, or null if there is none yet
+   */
+  RenderSnapshot takeSnapshot(RenderSnapshot drawn) {
+    RenderSnapshot latest = mReady.getAndSet(null);
+    if (latest != null && drawn != null) {
+      mSpare.set(drawn);
+    }
+    return latest;
+  }
+
+  @Override
+  public void run() {
+    publish();
+    long deadline = System.nanoTime();
+    while (!mStopped) {
+      boolean ticked = false;
+      if (mPlaying ? mNanosPerTick == 0 || System.nanoTime() - deadline >= 0
+                   : mStepsRequested.get() > 0) {
+        if (!mPlaying) {
+          mStepsRequested.decrementAndGet();
+        }
+        mMap.updateEntities();
+        ticked = true;
+        if (mPlaying && mNanosPerTick > 0) {
+          deadline += mNanosPerTick;
+          if (System.nanoTime() - deadline > mNanosPerTick) {
+            // fell behind, don't try to catch up with a burst of ticks
+            deadline = System.nanoTime();
+          }
+        }
+      }
+
+      boolean published = mPublishedTick == mMap.getTick();
+      if (!published && mReady.get() == null) {
+        publish();
+        published = true;
+      }
+      if (ticked) {
+        continue;
+      }
+      if (!published) {
+        // wait for the view to take the previous snapshot
+        LockSupport.parkNanos(this, POLL_NANOS);
+      } else if (mPlaying) {
+        LockSupport.parkNanos(this, deadline - System.nanoTime());
+      } else {
+        LockSupport.park(this);
+        deadline = System.nanoTime();
+      }
+    }
+  }
+
+  private void publish() {
+    RenderSnapshot snapshot = mSpare.getAndSet(null);
+    if (snapshot == null) {
+      snapshot = new RenderSnapshot();
+    }
+    mRenderer.capture(snapshot);
+    mPublishedTick = snapshot.getTick();
+    mReady.set(snapshot);
+  }
+}
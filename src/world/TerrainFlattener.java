@@ -0,0 +1,270 @@
+package world;
+
+/**
+ * Flattens mini-maxes the way {@link TerrainGenerator} describes, but gathers each tile's window
+ * statistics in constant time whatever the check radius.
+ * <p>
+ * The window around (r, c) is the (2 * radius + 1)^2 box minus its centre row and column, as
+ * returned by {@link util.WorldUtil#getValidNearbySquares}. Counts and height sums come from
+ * summed-area tables: box - centre row segment - centre column segment + centre. Whether all land
+ * neighbours are lower needs the highest land neighbour instead, which is the max over the four
+ * quadrants of the window, each taken from separable sliding-window maxima.
+ * <p>
+ * Every tile is judged against the terrain as it was before flattening. The map is processed in
+ * strips of rows so memory stays proportional to the map's height, not its area.
+ */
+final class TerrainFlattener {
+  // tiles per strip, not counting the rows of context above and below
+  private static final int STRIP_TILES = 1 << 20;
+  private static final int NONE = Integer.MIN_VALUE;
+
+  private final WorldMap mMap;
+  private final int mRadius;
+  private final int mWidth;
+  private final int mHeight;
+  private final int mStripRows;
+
+  // input rows of the current strip, including context
+  private int mInputStart;
+  private int mInputRows;
+  // elevation of land tiles, NONE for water
+  private final int[] mLandElevation;
+
+  // summed-area tables over the input rows, (mInputRows + 1) x (mHeight + 1)
+  private final int[] mLandCount;
+  private final long[] mLandSum;
+  private final long[] mAllSum;
+
+  // highest land elevation in the radius squares right of / left of each tile, then of those
+  // the radius rows below / above
+  private final int[] mRight;
+  private final int[] mLeft;
+  private final int[] mBelowRight;
+  private final int[] mBelowLeft;
+  private final int[] mAboveRight;
+  private final int[] mAboveLeft;
+  private final int[] mDeque;
+
+  // flattened result of the previous strip, applied once the next strip has read its context
+  private int mPendingStart = -1;
+  private int mPendingRows;
+  private final int[] mNewElevation;
+  private final byte[] mOutcome;
+  private static final byte UNCHANGED = 0;
+  private static final byte FLATTENED = 1;
+  private static final byte FLOODED = 2;
+
+  TerrainFlattener(WorldMap map, int radius) {
+    mMap = map;
+    mRadius = radius;
+    mWidth = map.getWidth();
+    mHeight = map.getHeight();
+    mStripRows = Math.max(4 * radius + 1, STRIP_TILES / Math.max(1, mHeight));
+
+    int maxInputRows = Math.min(mWidth, mStripRows + 2 * radius);
+    int tiles = maxInputRows * mHeight;
+    mLandElevation = new int[tiles];
+    int tableSize = (maxInputRows + 1) * (mHeight + 1);
+    mLandCount = new int[tableSize];
+    mLandSum = new long[tableSize];
+    mAllSum = new long[tableSize];
+    mRight = new int[tiles];
+    mLeft = new int[tiles];
+    mBelowRight = new int[tiles];
+    mBelowLeft = new int[tiles];
+    mAboveRight = new int[tiles];
+    mAboveLeft = new int[tiles];
+    mDeque = new int[Math.max(maxInputRows, mHeight)];
+    int outputTiles = Math.min(mWidth, mStripRows) * mHeight;
+    mNewElevation = new int[outputTiles];
+    mOutcome = new byte[outputTiles];
+  }
+
+  /**
+   * @return the number of tiles changed.
+   */
+  int flatten() {
+    int flattened = 0;
+    for (int r0 = 0; r0 < mWidth; r0 += mStripRows) {
+      int r1 = Math.min(mWidth, r0 + mStripRows);
+      load(Math.max(0, r0 - mRadius), Math.min(mWidth, r1 + mRadius));
+      applyPending();
+      flattened += flattenStrip(r0, r1);
+    }
+    applyPending();
+    return flattened;
+  }
+
+  private void load(int start, int end) {
+    mInputStart = start;
+    mInputRows = end - start;
+    int stride = mHeight + 1;
+    for (int i = 0; i < mInputRows; i++) {
+      int rowLandCount = 0;
+      long rowLandSum = 0;
+      long rowAllSum = 0;
+      for (int c = 0; c < mHeight; c++) {
+        int index = i * mHeight + c;
+        int elevation = mMap.elevation.get(start + i, c);
+        boolean land = mMap.terrain.get(start + i, c) != TerrainType.WATER;
+        mLandElevation[index] = land ? elevation : NONE;
+
+        rowAllSum += elevation;
+        if (land) {
+          rowLandCount++;
+          rowLandSum += elevation;
+        }
+        int table = (i + 1) * stride + c + 1;
+        mLandCount[table] = mLandCount[table - stride] + rowLandCount;
+        mLandSum[table] = mLandSum[table - stride] + rowLandSum;
+        mAllSum[table] = mAllSum[table - stride] + rowAllSum;
+      }
+    }
+
+    for (int i = 0; i < mInputRows; i++) {
+      slidingMax(mLandElevation, mRight, i * mHeight, 1, mHeight, true);
+      slidingMax(mLandElevation, mLeft, i * mHeight, 1, mHeight, false);
+    }
+    for (int c = 0; c < mHeight; c++) {
+      slidingMax(mRight, mBelowRight, c, mHeight, mInputRows, true);
+      slidingMax(mRight, mAboveRight, c, mHeight, mInputRows, false);
+      slidingMax(mLeft, mBelowLeft, c, mHeight, mInputRows, true);
+      slidingMax(mLeft, mAboveLeft, c, mHeight, mInputRows, false);
+    }
+  }
+
+  /**
+   * For each of the {@param n} entries of a line through {@param src}, writes to {@param dst} the
+   * max over the radius entries starting at it, going forward or backward along the line.
+   */
+  private void slidingMax(int[] src, int[] dst, int start, int stride, int n, boolean forward) {
+    int head = 0;
+    int tail = 0;
+    for (int step = 0; step < n; step++) {
+      int k = forward ? n - 1 - step : step;
+      int value = src[start + k * stride];
+      while (tail > head && src[start + mDeque[tail - 1] * stride] <= value) {
+        tail--;
+      }
+      mDeque[tail++] = k;
+      if (Math.abs(mDeque[head] - k) >= mRadius) {
+        head++;
+      }
+      dst[start + k * stride] = src[start + mDeque[head] * stride];
+    }
+  }
+
+  private int flattenStrip(int r0, int r1) {
+    int flattened = 0;
+    int stride = mHeight + 1;
+    for (int r = r0; r < r1; r++) {
+      int i = r - mInputStart;
+      int top = Math.max(0, i - mRadius);
+      int bottom = Math.min(mInputRows - 1, i + mRadius);
+      for (int c = 0; c < mHeight; c++) {
+        int index = i * mHeight + c;
+        int out = (r - r0) * mHeight + c;
+        mOutcome[out] = UNCHANGED;
+        int elevation = mLandElevation[index];
+        if (elevation == NONE) {
+          continue;
+        }
+        int left = Math.max(0, c - mRadius);
+        int right = Math.min(mHeight - 1, c + mRadius);
+        int allCount = (bottom - top) * (right - left);
+        if (allCount == 0) {
+          continue;
+        }
+
+        int landCount = window(mLandCount, stride, top, bottom, left, right, i, c);
+        if (landCount > 0 && highestLandNeighbour(i, c) >= elevation) {
+          // only flatten if all land neighbors are lower
+          continue;
+        }
+
+        if (landCount > 0) {
+          long landSum = window(mLandSum, stride, top, bottom, left, right, i, c);
+          mNewElevation[out] = (int) (landSum / landCount);
+          mOutcome[out] = FLATTENED;
+        } else {
+          // surrounded by water, will update terrain type to avoid one-block islands
+          long allSum = window(mAllSum, stride, top, bottom, left, right, i, c);
+          mNewElevation[out] = (int) (allSum / allCount);
+          mOutcome[out] = FLOODED;
+        }
+        flattened++;
+      }
+    }
+    mPendingStart = r0;
+    mPendingRows = r1 - r0;
+    return flattened;
+  }
+
+  private int highestLandNeighbour(int i, int c) {
+    int highest = NONE;
+    if (i > 0) {
+      int above = (i - 1) * mHeight;
+      if (c > 0) {
+        highest = Math.max(highest, mAboveLeft[above + c - 1]);
+      }
+      if (c < mHeight - 1) {
+        highest = Math.max(highest, mAboveRight[above + c + 1]);
+      }
+    }
+    if (i < mInputRows - 1) {
+      int below = (i + 1) * mHeight;
+      if (c > 0) {
+        highest = Math.max(highest, mBelowLeft[below + c - 1]);
+      }
+      if (c < mHeight - 1) {
+        highest = Math.max(highest, mBelowRight[below + c + 1]);
+      }
+    }
+    return highest;
+  }
+
+  private void applyPending() {
+    if (mPendingStart < 0) {
+      return;
+    }
+    for (int r = 0; r < mPendingRows; r++) {
+      for (int c = 0; c < mHeight; c++) {
+        int out = r * mHeight + c;
+        if (mOutcome[out] == UNCHANGED) {
+          continue;
+        }
+        mMap.elevation.set(mPendingStart + r, c, mNewElevation[out]);
+        if (mOutcome[out] == FLOODED) {
+          mMap.terrain.set(mPendingStart + r, c, TerrainType.WATER);
+        }
+      }
+    }
+    mPendingStart = -1;
+  }
+
+  private static int window(
+      int[] table, int stride, int top, int bottom, int left, int right, int i, int c) {
+    return box(table, stride, top, bottom, left, right)
+           - box(table, stride, i, i, left, right)
+           - box(table, stride, top, bottom, c, c)
+           + box(table, stride, i, i, c, c);
+  }
+
+  private static long window(
+      long[] table, int stride, int top, int bottom, int left, int right, int i, int c) {
+    return box(table, stride, top, bottom, left, right)
+           - box(table, stride, i, i, left, right)
+           - box(table, stride, top, bottom, c, c)
+           + box(table, stride, i, i, c, c);
+  }
+
+  private static int box(int[] table, int stride, int top, int bottom, int left, int right) {
+    return table[(bottom + 1) * stride + right + 1] - table[top * stride + right + 1]
+           - table[(bottom + 1) * stride + left] + table[top * stride + left];
+  }
+
+  private static long box(long[] table, int stride, int top, int bottom, int left, int right) {
+    return table[(bottom + 1) * stride + right + 1] - table[top * stride + right + 1]
+           - table[(bottom + 1) * stride + left] + table[top * stride + left];
+  }
+}
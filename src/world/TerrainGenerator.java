@@ -2,178 +2,224 @@ package world;
 
 import entity.entities.BunnyEntity;
 import entity.entities.PlantEntity;
+import util.ChunkedTilePlane;
+import util.RandomStream;
 import util.WorldUtil;
-import util.Vec2d;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class TerrainGenerator {
-  private static RNG rGen;
-  private static RNG cGen;
+  // elevation is seeded tile by tile; a tile must be wider than twice the largest smooth radius
+  private static final int ELEVATION_TILE_SIZE = ChunkedTilePlane.CHUNK_SIZE;
 
   public static WorldMap createMap(String id, int width, int height) {
-    initMapRNG(width, height);
+    return createMap(id, width, height, ThreadLocalRandom.current().nextLong());
+  }
 
-    WorldMap worldMap = initWorldMapWithRandomElevations(id, width, height);
-    floodWaterTable(worldMap, worldMap.getMaxHeight() / 3);
-    flatten(worldMap, 3);
-    seedPlants(worldMap);
-    seedAnimals(worldMap);
+  /**
+   * Creates a map determined entirely by {@param seed}: the same seed gives the same terrain,
+   * entities and, when run, the same simulation.
+   */
+  public static WorldMap createMap(String id, int width, int height, long seed) {
+    return createMap(id, width, height, seed, null);
+  }
 
-    return worldMap;
+  /**
+   * Like {@link #createMap(String, int, int, long)}, but generates elevation on {@param pool}
+   * when it is non-null. The map is the same whether or not a pool is used.
+   */
+  public static WorldMap createMap(
+      String id, int width, int height, long seed, ForkJoinPool pool) {
+    return createMap(id, new WorldConfig(width, height, seed), pool);
   }
 
-  private static void initMapRNG(int width, int height) {
-    rGen = new RNG(width);
-    cGen = new RNG(height);
+  /**
+   * Creates a map with the size, seed and parameters of {@param config}, which the map keeps a
+   * copy of. The same config gives the same map. Safe to call from several threads at once.
+   */
+  public static WorldMap createMap(String id, WorldConfig config, ForkJoinPool pool) {
+    int width = config.getWidth();
+    int height = config.getHeight();
+    log(config, "Seed: " + config.getSeed());
+    log(config, "World dimen: " + width + " x " + height);
+    log(config, "Height Seeds: " + height);
+    RandomStream random = new RandomStream(config.getSeed());
+    // placement of the initial entities draws from these
+    RNG rGen = new RNG(width, random.split());
+    RNG cGen = new RNG(height, random.split());
+
+    WorldMap worldMap =
+        initWorldMapWithRandomElevations(id, width, height, random.split(), pool);
+    worldMap.setConfig(config);
+    // entities draw from the rest of the root stream
+    worldMap.setRandom(config.getSeed(), random);
+    int waterCount = floodWaterTable(
+        worldMap, (int) (worldMap.getMaxHeight() * config.getWaterTableFraction()));
+    log(config, "Tiles converted to water: " + waterCount + " ("
+                + (100 * waterCount / width / height) * 1.0 + "%)");
+    log(config, "Flattened: " + flatten(worldMap, 3));
+    worldMap.onTerrainChanged();
+    int germinated = seedPlants(worldMap, config.getPlantSeeds(), rGen, cGen);
+    log(config, "Planted " + config.getPlantSeeds() + " seeds, " + germinated + " germinated.");
+    seedAnimals(worldMap, config.getAnimals(), rGen, cGen);
+
+    return worldMap;
   }
 
-  private static WorldMap initWorldMapWithRandomElevations(String id, int width, int height) {
-    RNG eGen = new RNG(2, 7);
+  /**
+   * Seeds elevation one {@link #ELEVATION_TILE_SIZE} tile at a time, each tile drawing from its
+   * own stream split off {@param random}. A seed's smoothing can spill into the neighbouring
+   * tiles, so tiles run in four phases by (row, column) parity: tiles in the same phase are at
+   * least a tile apart and never touch the same squares, and the phases always run in the same
+   * order. This makes the result independent of how tiles are spread over {@param pool}, and
+   * running without a pool gives the same map.
+   */
+  private static WorldMap initWorldMapWithRandomElevations(
+      String id, int width, int height, RandomStream random, ForkJoinPool pool) {
+    ChunkedTilePlane terrainType =
+        new ChunkedTilePlane(width, height, ChunkedTilePlane.Encoding.BYTE, TerrainType.GROUND);
+    ChunkedTilePlane terrainElevation =
+        new ChunkedTilePlane(width, height, ChunkedTilePlane.Encoding.SHORT, 0);
+    // tiles write into their neighbours' chunks, so none may be allocated on the fly
+    terrainElevation.allocateAll();
 
-    int[][] terrainType = new int[width][height];
-    int[][] terrainElevation = new int[width][height];
+    int tileRows = (width + ELEVATION_TILE_SIZE - 1) / ELEVATION_TILE_SIZE;
+    int tileColumns = (height + ELEVATION_TILE_SIZE - 1) / ELEVATION_TILE_SIZE;
+    RandomStream[] tileRandoms = new RandomStream[tileRows * tileColumns];
+    for (int tile = 0; tile < tileRandoms.length; tile++) {
+      tileRandoms[tile] = random.split();
+    }
 
-    int heightSeeds = width * height / 2;
-    log("World dimen: " + width + " x " + height);
-    log("Height Seeds: " + height);
+    for (int phase = 0; phase < 4; phase++) {
+      List<ElevationTileTask> tasks = new ArrayList<>();
+      for (int tr = phase >> 1; tr < tileRows; tr += 2) {
+        for (int tc = phase & 1; tc < tileColumns; tc += 2) {
+          tasks.add(new ElevationTileTask(
+              terrainElevation, tr, tc, tileRandoms[tr * tileColumns + tc]));
+        }
+      }
+      if (pool == null) {
+        for (ElevationTileTask task : tasks) {
+          task.compute();
+        }
+      } else {
+        pool.invoke(new RecursiveAction() {
+          @Override
+          protected void compute() {
+            invokeAll(tasks);
+          }
+        });
+      }
+    }
+    terrainElevation.compact();
+    return new WorldMap(id, terrainType, terrainElevation);
+  }
+
+  /**
+   * Places half a height seed per square of one tile, smoothing each into its surroundings.
+   */
+  private static void seedElevationTile(
+      ChunkedTilePlane terrainElevation, int tr, int tc, RandomStream random) {
+    RNG eGen = new RNG(2, 7, random);
+    int r0 = tr * ELEVATION_TILE_SIZE;
+    int c0 = tc * ELEVATION_TILE_SIZE;
+    int rows = Math.min(ELEVATION_TILE_SIZE, terrainElevation.getWidth() - r0);
+    int columns = Math.min(ELEVATION_TILE_SIZE, terrainElevation.getHeight() - c0);
+
+    int heightSeeds = rows * columns / 2;
     int r, c, dE;
     for (int i = 0; i < heightSeeds; i++) {
-      r = rGen.getRandomInt();
-      c = cGen.getRandomInt();
+      r = r0 + random.nextInt(rows);
+      c = c0 + random.nextInt(columns);
       dE = eGen.getRandomInt();
-      terrainElevation[r][c] += dE;
+      terrainElevation.set(r, c, terrainElevation.get(r, c) + dE);
       smooth(terrainElevation, r, c, dE / 2);
     }
-    return new WorldMap(id, terrainType, terrainElevation);
   }
 
   /**
    * Roughly simulate grain of sand distribution: adding to one point will redistribute some to
    * nearby tiles. The further the tiles are away from the source, the less they will receive.
    */
-  private static void smooth(int[][] terrainElevation, int r, int c, int dESmoothAmount) {
+  private static void smooth(ChunkedTilePlane terrainElevation, int r, int c, int dESmoothAmount) {
     int i, j, ddE;
+    int sourceElevation = terrainElevation.get(r, c);
     for (int dR = -dESmoothAmount; dR <= dESmoothAmount; dR++) {
       for (int dC = -dESmoothAmount; dC <= dESmoothAmount; dC++) {
         i = r + dR;
         j = c + dC;
-        if (WorldUtil.ifInvalidIndex(i, j, terrainElevation.length, terrainElevation[0].length)
+        if (WorldUtil.ifInvalidIndex(
+                i, j, terrainElevation.getWidth(), terrainElevation.getHeight())
             || (dR == 0 && dC == 0)) {
           continue;
         }
 
         // amount received determined by furthest distance in a direction, farther away --> less
         ddE = dESmoothAmount - Math.max(Math.abs(dR), Math.abs(dC)) + 1;
-        if (terrainElevation[i][j] < terrainElevation[r][c]) {
+        if (terrainElevation.get(i, j) < sourceElevation) {
           // add up to be the at most the same height
-          terrainElevation[i][j] = Math.min(terrainElevation[r][c], terrainElevation[i][j] + ddE);
+          terrainElevation.set(i, j, Math.min(sourceElevation, terrainElevation.get(i, j) + ddE));
         }
       }
     }
   }
 
 
-  private static void floodWaterTable(WorldMap map, int waterTableHeight) {
+  // @return number of tiles flooded.
+  private static int floodWaterTable(WorldMap map, int waterTableHeight) {
     int waterCount = 0;
     for (int r = 0; r < map.getWidth(); r++) {
       for (int c = 0; c < map.getHeight(); c++) {
-        if (map.elevationMap[r][c] <= waterTableHeight) {
-          map.terrainMap[r][c] = TerrainType.WATER;
+        if (map.elevation.get(r, c) <= waterTableHeight) {
+          map.terrain.set(r, c, TerrainType.WATER);
           waterCount++;
         }
       }
     }
-    log("Tiles converted to water: " + waterCount + " (" +
-        (100 * waterCount / map.getWidth() / map.getHeight()) * 1.0 + "%)");
-  }
-
-  private static void flatten(WorldMap map, int checkRadius) {
-    int flattenedAreaCount = 0;
-    for (int r = 0; r < map.getWidth(); r++) {
-      for (int c = 0; c < map.getHeight(); c++) {
-        if (map.terrainMap[r][c] != TerrainType.WATER) {
-          flattenedAreaCount += flattenHelper(map, checkRadius, r, c);
-        }
-      }
-    }
-    log("Flattened: " + flattenedAreaCount);
+    return waterCount;
   }
 
   /**
    * Reduce the number of standout bumps / jaggedness by reducing number of tiny hills (mini-maxes).
-   * New value of point will be an average of nearby valid (TerrainType.GROUND) neighbors.
+   * A land tile whose land neighbors within {@param checkRadius} are all lower takes their average
+   * height.
    * <p>
    * If there are no valid neighbors to find the new terrain height, then we must be surrounded by
    * water and convert the terrain into water and take the average depth of water neighbors.
    *
-   * @Returns the number of tiles changed.
+   * @return number of tiles flattened.
    */
-  private static int flattenHelper(WorldMap map, int checkRadius, int r, int c) {
-    LinkedList<Vec2d> nearbyAreas = WorldUtil.getValidNearbySquares(map, r, c, checkRadius);
-
-    int numValidNeighbors = 0;
-    int numNeighborsLower = 0;
-    for (Vec2d vec : nearbyAreas) {
-      if (map.terrainMap[vec.x][vec.y] != TerrainType.WATER) {
-        numValidNeighbors++;
-        if (map.elevationMap[vec.x][vec.y] < map.elevationMap[r][c]) {
-          numNeighborsLower++;
-        }
-      }
-    }
-
-    // only flatten if most of neighbors are lower
-    if (numValidNeighbors > 0 && (numNeighborsLower / numValidNeighbors < 0.5)) {
-      return 0;
-    }
-
-    numValidNeighbors = 0;
-    int validNeighborsHeightSum = 0;
-    int allNeighborsHeightSum = 0;
-    nearbyAreas = WorldUtil.getValidNearbySquares(map, r, c, checkRadius);
-    for (Vec2d vec : nearbyAreas) {
-      allNeighborsHeightSum += map.elevationMap[vec.x][vec.y];
-      if (map.terrainMap[vec.x][vec.y] != TerrainType.WATER) {
-        numValidNeighbors++;
-        validNeighborsHeightSum += map.elevationMap[vec.x][vec.y];
-      }
-    }
-
-    if (numValidNeighbors > 0) {
-      map.elevationMap[r][c] = validNeighborsHeightSum / numValidNeighbors;
-    } else {
-      // surrounded by water, will update terrain type to avoid one-block islands
-      map.elevationMap[r][c] = allNeighborsHeightSum / nearbyAreas.size();
-      map.terrainMap[r][c] = TerrainType.WATER;
-    }
-    return 1;
+  private static int flatten(WorldMap map, int checkRadius) {
+    return new TerrainFlattener(map, checkRadius).flatten();
   }
 
-  private static void seedPlants(WorldMap map) {
-    int seeds = map.terrainMap.length + map.terrainMap[0].length;
+  // @return number of plants that germinated.
+  private static int seedPlants(WorldMap map, int seeds, RNG rGen, RNG cGen) {
     int successAdds = 0;
 
     int r, c;
     for (int s = 0; s < seeds; s++) {
       r = rGen.getRandomInt();
       c = cGen.getRandomInt();
-      if (map.terrainMap[r][c] != TerrainType.WATER
+      if (map.getTerrainType(r, c) != TerrainType.WATER
           && map.addEntity(new PlantEntity(map, r, c), false /* isNewborn */)) {
         successAdds++;
       }
     }
-    log("Planted " + seeds + " seeds, " + successAdds + " germinated.");
+    return successAdds;
   }
 
-  private static void seedAnimals(WorldMap map) {
-    int animals = 2;
+  private static void seedAnimals(WorldMap map, int animals, RNG rGen, RNG cGen) {
     int r, c;
     int a = 0;
     while (a < animals) {
       r = rGen.getRandomInt();
       c = cGen.getRandomInt();
-      if (map.terrainMap[r][c] != TerrainType.WATER
+      if (map.getTerrainType(r, c) != TerrainType.WATER
           && map.addEntity(new BunnyEntity(map, r, c), false /* isNewborn */)) {
         a++;
       }
@@ -181,27 +227,53 @@ public class TerrainGenerator {
   }
 
 
-  private static void log(String s) {
-    System.out.println(s);
+  private static void log(WorldConfig config, String s) {
+    if (config.isVerbose()) {
+      System.out.println(s);
+    }
+  }
+
+  private static class ElevationTileTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final ChunkedTilePlane mTerrainElevation;
+    private final int mTileRow;
+    private final int mTileColumn;
+    private final RandomStream mRandom;
+
+    ElevationTileTask(
+        ChunkedTilePlane terrainElevation, int tileRow, int tileColumn, RandomStream random) {
+      mTerrainElevation = terrainElevation;
+      mTileRow = tileRow;
+      mTileColumn = tileColumn;
+      mRandom = random;
+    }
+
+    @Override
+    protected void compute() {
+      seedElevationTile(mTerrainElevation, mTileRow, mTileColumn, mRandom);
+    }
   }
 
   private static class RNG {
     private final int mMax;
     private final int mMin;
     private final int mInterval;
+    private final RandomStream mRandom;
 
-    public RNG(int max) {
-      this(0, max);
+    public RNG(int max, RandomStream random) {
+      this(0, max, random);
     }
 
-    public RNG(int min, int max) {
+    public RNG(int min, int max, RandomStream random) {
       mMin = min;
       mMax = max - 1;
       mInterval = mMax - mMin;
+      mRandom = random;
     }
 
     public int getRandomInt() {
-      return (int) (Math.random() * mInterval + 0.5) + mMin;
+      return (int) (mRandom.nextDouble() * mInterval + 0.5) + mMin;
     }
   }
 }
@@ -0,0 +1,30 @@
+package world;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event spanning one {@link WorldMap#updateEntities()} call.
+ */
+@Name("ecosim.Tick")
+@Label("Tick")
+@Category("EcoSim")
+@StackTrace(false)
+@Description("One update of a map")
+class TickEvent extends jdk.jfr.Event {
+  @Label("Map")
+  String mapId;
+
+  @Label("Tick")
+  long tick;
+
+  @Label("Entities")
+  int entities;
+
+  @Label("Plants")
+  @Description("Plants in compact storage, not counted in entities")
+  int plants;
+}
@@ -0,0 +1,24 @@
+package world;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event spanning one {@link WorldMetrics.Phase} of a tick.
+ */
+@Name("ecosim.TickPhase")
+@Label("Tick Phase")
+@Category("EcoSim")
+@StackTrace(false)
+class TickPhaseEvent extends jdk.jfr.Event {
+  @Label("Map")
+  String mapId;
+
+  @Label("Tick")
+  long tick;
+
+  @Label("Phase")
+  String phase;
+}
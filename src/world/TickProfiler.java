@@ -0,0 +1,128 @@
+package world;
+
+import jdk.jfr.EventType;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Times a map's ticks and their {@link WorldMetrics.Phase phases} into the map's
+ * {@link WorldMetrics}, and emits them as {@link TickEvent}s and {@link TickPhaseEvent}s while a
+ * JFR recording wants them. Does nothing but check for either at the start of a tick otherwise.
+ * <p>
+ * Allocation can be attributed to ticks and phases by the JFR allocation samples falling into
+ * their events.
+ */
+final class TickProfiler {
+  private static final EventType TICK_EVENT_TYPE = EventType.getEventType(TickEvent.class);
+  private static final EventType PHASE_EVENT_TYPE = EventType.getEventType(TickPhaseEvent.class);
+
+  private final WorldMap mMap;
+
+  // set for the duration of a tick that is being profiled
+  private boolean mActive;
+  private WorldMetrics mMetrics;
+  private TickEvent mTickEvent;
+  private long mTick;
+  private long mTickStart;
+  private long mAllocatedAtStart;
+
+  private WorldMetrics.Phase mPhase;
+  private long mPhaseStart;
+  private TickPhaseEvent mPhaseEvent;
+
+  TickProfiler(WorldMap map) {
+    mMap = map;
+  }
+
+  void beginTick() {
+    mMetrics = mMap.getMetrics();
+    boolean recordTicks = TICK_EVENT_TYPE.isEnabled();
+    mActive = mMetrics != null || recordTicks || PHASE_EVENT_TYPE.isEnabled();
+    if (!mActive) {
+      return;
+    }
+    mTick = mMap.getTick();
+    if (recordTicks) {
+      mTickEvent = new TickEvent();
+      mTickEvent.begin();
+    }
+    mAllocatedAtStart = mMetrics != null && Allocation.BEAN != null
+                        ? Allocation.BEAN.getCurrentThreadAllocatedBytes() : -1;
+    mTickStart = System.nanoTime();
+  }
+
+  /**
+   * Ends the running phase, if any, and starts {@param phase}.
+   */
+  void beginPhase(WorldMetrics.Phase phase) {
+    if (!mActive) {
+      return;
+    }
+    long now = endPhase();
+    mPhase = phase;
+    mPhaseStart = now;
+    if (PHASE_EVENT_TYPE.isEnabled()) {
+      mPhaseEvent = new TickPhaseEvent();
+      mPhaseEvent.begin();
+    }
+  }
+
+  void endTick() {
+    if (!mActive) {
+      return;
+    }
+    long end = endPhase();
+    if (mMetrics != null) {
+      long allocated = mAllocatedAtStart >= 0
+                       ? Allocation.BEAN.getCurrentThreadAllocatedBytes() - mAllocatedAtStart
+                       : -1;
+      mMetrics.recordTick(mMap, end - mTickStart, allocated);
+    }
+    if (mTickEvent != null) {
+      mTickEvent.mapId = mMap.getMapId();
+      mTickEvent.tick = mTick;
+      mTickEvent.entities = mMap.entityList.size();
+      mTickEvent.plants = mMap.getPlantPopulation() != null ? mMap.getPlantPopulation().size() : 0;
+      mTickEvent.commit();
+      mTickEvent = null;
+    }
+    mActive = false;
+    mMetrics = null;
+  }
+
+  // @return the time the phase ended.
+  private long endPhase() {
+    long now = System.nanoTime();
+    if (mPhase == null) {
+      return now;
+    }
+    if (mMetrics != null) {
+      mMetrics.recordPhase(mPhase, now - mPhaseStart);
+    }
+    if (mPhaseEvent != null) {
+      mPhaseEvent.mapId = mMap.getMapId();
+      mPhaseEvent.tick = mTick;
+      mPhaseEvent.phase = mPhase.mName;
+      mPhaseEvent.commit();
+      mPhaseEvent = null;
+    }
+    mPhase = null;
+    return now;
+  }
+
+  // Loaded on first use only, so maps without metrics don't start the management beans
+  private static final class Allocation {
+    static final com.sun.management.ThreadMXBean BEAN = bean();
+
+    private static com.sun.management.ThreadMXBean bean() {
+      ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      if (bean instanceof com.sun.management.ThreadMXBean
+          && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()
+          && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemoryEnabled()) {
+        return (com.sun.management.ThreadMXBean) bean;
+      }
+      return null;
+    }
+  }
+}
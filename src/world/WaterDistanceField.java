@@ -0,0 +1,224 @@
+package world;
+
+import util.ChunkedTilePlane;
+
+import java.util.Arrays;
+
+/**
+ * Per tile number of steps a {@link entity.api.Traits.Terrestrial terrestrial} entity needs to get
+ * next to water, moving up, down, left or right over ground. Water tiles are 0, tiles from which
+ * no water can be reached {@link #UNREACHABLE}. Built by a breadth first search from every water
+ * tile at once, so any number of entities can follow it to the closest water with a lookup of the
+ * neighboring tiles.
+ * <p>
+ * Only terrain counts. Entities blocking the way move every tick, so they are stepped around when
+ * looking for a direction instead of being searched around, see {@link #getDirectionToWater}.
+ * Terrain changes are repaired around the changed tile.
+ */
+class WaterDistanceField {
+  static final int UNREACHABLE = Integer.MAX_VALUE;
+
+  // Tile offsets by entity direction: up, right, down, left
+  private static final int[] STEP_R = {-1, 0, 1, 0};
+  private static final int[] STEP_C = {0, 1, 0, -1};
+  private static final int MAX_KEPT_QUEUE = 1 << 12;
+
+  private final WorldMap mMap;
+  private final ChunkedTilePlane mDistance;
+
+  // Tiles to visit as r * height + c, paired with a value where the visit needs one. Tiles stay
+  // in the queue until it is cleared.
+  private int[] mQueue = new int[MAX_KEPT_QUEUE];
+  private int[] mQueueValues = new int[MAX_KEPT_QUEUE];
+  private int mHead;
+  private int mTail;
+
+  WaterDistanceField(WorldMap map) {
+    mMap = map;
+    mDistance = new ChunkedTilePlane(
+        map.getWidth(), map.getHeight(), ChunkedTilePlane.Encoding.INT, UNREACHABLE);
+  }
+
+  int getDistance(int r, int c) {
+    return mDistance.get(r, c);
+  }
+
+  /**
+   * @return the direction of the free neighboring ground tile closest to water, or -1 if no free
+   * neighbor leads to water. Neighbors at the same distance are preferred in direction order.
+   */
+  int getDirectionToWater(int r, int c) {
+    int best = UNREACHABLE;
+    int direction = -1;
+    for (int d = 0; d < STEP_R.length; d++) {
+      int nr = r + STEP_R[d];
+      int nc = c + STEP_C[d];
+      if (!isGround(nr, nc) || mMap.getOccupyingEntityAt(nr, nc) != null) {
+        continue;
+      }
+      int distance = mDistance.get(nr, nc);
+      if (distance < best) {
+        best = distance;
+        direction = d;
+      }
+    }
+    return direction;
+  }
+
+  /**
+   * @return if a tile up, down, left or right of the tile is water.
+   */
+  boolean isNextToWater(int r, int c) {
+    for (int d = 0; d < STEP_R.length; d++) {
+      if (mMap.isOnMap(r + STEP_R[d], c + STEP_C[d])
+          && mDistance.get(r + STEP_R[d], c + STEP_C[d]) == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Recomputes the whole field.
+   */
+  void rebuild() {
+    mDistance.fill(UNREACHABLE);
+    clearQueue();
+    for (int r = 0; r < mMap.getWidth(); r++) {
+      for (int c = 0; c < mMap.getHeight(); c++) {
+        if (mMap.terrain.get(r, c) == TerrainType.WATER) {
+          mDistance.set(r, c, 0);
+          enqueue(r, c, 0);
+        }
+      }
+    }
+    relax();
+    clearQueue();
+    mDistance.compact();
+  }
+
+  /**
+   * Repairs the field after the terrain type of the tile changed.
+   */
+  void update(int r, int c) {
+    int old = mDistance.get(r, c);
+    int expected = computeTile(r, c);
+    if (expected < old) {
+      mDistance.set(r, c, expected);
+      clearQueue();
+      enqueue(r, c, expected);
+      relax();
+    } else if (expected > old) {
+      raise(r, c);
+    }
+  }
+
+  /**
+   * The tile got further from water, e.g. became ground. Every tile that was only as close as it
+   * is because of this tile is unset, then the unset tiles are filled in again from their
+   * neighbors.
+   */
+  private void raise(int r, int c) {
+    int height = mMap.getHeight();
+    clearQueue();
+    enqueue(r, c, mDistance.get(r, c));
+    mDistance.set(r, c, UNREACHABLE);
+    // the queue doubles as the list of unset tiles, with their old distances
+    while (mHead < mTail) {
+      int tile = mQueue[mHead];
+      int old = mQueueValues[mHead++];
+      int tr = tile / height;
+      int tc = tile % height;
+      for (int d = 0; d < STEP_R.length; d++) {
+        int nr = tr + STEP_R[d];
+        int nc = tc + STEP_C[d];
+        if (isGround(nr, nc) && mDistance.get(nr, nc) == old + 1 && !hasCloserNeighbor(nr, nc)) {
+          enqueue(nr, nc, old + 1);
+          mDistance.set(nr, nc, UNREACHABLE);
+        }
+      }
+    }
+
+    for (int i = 0; i < mTail; i++) {
+      int tr = mQueue[i] / height;
+      int tc = mQueue[i] % height;
+      mDistance.set(tr, tc, computeTile(tr, tc));
+    }
+    // visit the unset tiles again, now to pass their new distances on
+    mHead = 0;
+    relax();
+  }
+
+  // Passes distances on from the queued tiles until nothing gets closer.
+  private void relax() {
+    int height = mMap.getHeight();
+    while (mHead < mTail) {
+      int tile = mQueue[mHead++];
+      int tr = tile / height;
+      int tc = tile % height;
+      int distance = mDistance.get(tr, tc);
+      if (distance == UNREACHABLE) {
+        continue;
+      }
+      for (int d = 0; d < STEP_R.length; d++) {
+        int nr = tr + STEP_R[d];
+        int nc = tc + STEP_C[d];
+        if (isGround(nr, nc) && mDistance.get(nr, nc) > distance + 1) {
+          mDistance.set(nr, nc, distance + 1);
+          enqueue(nr, nc, 0);
+        }
+      }
+    }
+  }
+
+  private boolean hasCloserNeighbor(int r, int c) {
+    int distance = mDistance.get(r, c);
+    for (int d = 0; d < STEP_R.length; d++) {
+      int nr = r + STEP_R[d];
+      int nc = c + STEP_C[d];
+      if (mMap.isOnMap(nr, nc) && mDistance.get(nr, nc) == distance - 1) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Distance of the tile going by its neighbors.
+  private int computeTile(int r, int c) {
+    if (mMap.terrain.get(r, c) == TerrainType.WATER) {
+      return 0;
+    }
+    int closest = UNREACHABLE;
+    for (int d = 0; d < STEP_R.length; d++) {
+      int nr = r + STEP_R[d];
+      int nc = c + STEP_C[d];
+      if (mMap.isOnMap(nr, nc)) {
+        closest = Math.min(closest, mDistance.get(nr, nc));
+      }
+    }
+    return closest == UNREACHABLE ? UNREACHABLE : closest + 1;
+  }
+
+  private boolean isGround(int r, int c) {
+    return mMap.isOnMap(r, c) && mMap.terrain.get(r, c) != TerrainType.WATER;
+  }
+
+  private void enqueue(int r, int c, int value) {
+    if (mTail == mQueue.length) {
+      mQueue = Arrays.copyOf(mQueue, 2 * mQueue.length);
+      mQueueValues = Arrays.copyOf(mQueueValues, 2 * mQueueValues.length);
+    }
+    mQueue[mTail] = r * mMap.getHeight() + c;
+    mQueueValues[mTail++] = value;
+  }
+
+  private void clearQueue() {
+    mHead = 0;
+    mTail = 0;
+    if (mQueue.length > MAX_KEPT_QUEUE) {
+      // don't hold on to a queue the size of the map after a rebuild
+      mQueue = new int[MAX_KEPT_QUEUE];
+      mQueueValues = new int[MAX_KEPT_QUEUE];
+    }
+  }
+}
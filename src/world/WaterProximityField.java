@@ -0,0 +1,121 @@
+package world;
+
+import util.ChunkedTilePlane;
+import util.TilePlane;
+
+/**
+ * Per tile highest elevation of the water tiles in its neighborhood, i.e. the tiles within
+ * {@link #RADIUS} that share neither the row nor the column of the tile (see
+ * {@link util.WorldUtil#getValidNearbySquares}).
+ * <p>
+ * The highest water is the easiest to reach from the tile, so this is all a water check needs. Only
+ * depends on terrain, so it is built once and then patched around tiles whose terrain changes.
+ */
+class WaterProximityField {
+  static final int RADIUS = 3;
+  static final int NO_WATER = Short.MIN_VALUE;
+
+  private final WorldMap mMap;
+  // Same encoding as the elevation plane, so any water elevation fits. Tiles far from water share
+  // uniform NO_WATER chunks.
+  private final TilePlane mHighestWaterElevation;
+
+  WaterProximityField(WorldMap map) {
+    this(map, new ChunkedTilePlane(
+        map.getWidth(), map.getHeight(), ChunkedTilePlane.Encoding.SHORT, NO_WATER));
+  }
+
+  /**
+   * Uses an already computed field, e.g. one stored with the map.
+   */
+  WaterProximityField(WorldMap map, TilePlane highestWaterElevation) {
+    mMap = map;
+    mHighestWaterElevation = highestWaterElevation;
+  }
+
+  TilePlane getPlane() {
+    return mHighestWaterElevation;
+  }
+
+  /**
+   * @return the highest nearby water elevation, or {@link #NO_WATER}.
+   */
+  int getHighestWaterElevation(int r, int c) {
+    return mHighestWaterElevation.get(r, c);
+  }
+
+  /**
+   * Recomputes the whole field. The neighborhood is separable (all other columns within the radius
+   * in all other rows within the radius), so this takes a max over the row first and then over the
+   * column, keeping only the 2 * RADIUS + 1 row maxes currently needed.
+   */
+  void rebuild() {
+    int width = mMap.getWidth();
+    int height = mMap.getHeight();
+    int window = 2 * RADIUS + 1;
+    int[][] rowMaxes = new int[window][height];
+
+    for (int r = 0; r < width + RADIUS; r++) {
+      if (r < width) {
+        computeRowMax(r, rowMaxes[r % window]);
+      }
+      int outR = r - RADIUS;
+      if (outR < 0) {
+        continue;
+      }
+      for (int c = 0; c < height; c++) {
+        int highest = NO_WATER;
+        for (int nr = Math.max(0, outR - RADIUS); nr <= Math.min(width - 1, outR + RADIUS); nr++) {
+          if (nr != outR) {
+            highest = Math.max(highest, rowMaxes[nr % window][c]);
+          }
+        }
+        mHighestWaterElevation.set(outR, c, highest);
+      }
+    }
+    mHighestWaterElevation.compact();
+  }
+
+  // Highest water elevation in the row, per column, excluding that column itself.
+  private void computeRowMax(int r, int[] out) {
+    int height = mMap.getHeight();
+    for (int c = 0; c < height; c++) {
+      int highest = NO_WATER;
+      for (int nc = Math.max(0, c - RADIUS); nc <= Math.min(height - 1, c + RADIUS); nc++) {
+        if (nc != c) {
+          highest = Math.max(highest, waterElevation(r, nc));
+        }
+      }
+      out[c] = highest;
+    }
+  }
+
+  /**
+   * Patches the field after the terrain or elevation of the tile changed.
+   */
+  void update(int r, int c) {
+    for (int tr = r - RADIUS; tr <= r + RADIUS; tr++) {
+      for (int tc = c - RADIUS; tc <= c + RADIUS; tc++) {
+        if (tr != r && tc != c && mMap.isOnMap(tr, tc)) {
+          mHighestWaterElevation.set(tr, tc, computeTile(tr, tc));
+        }
+      }
+    }
+  }
+
+  private int computeTile(int r, int c) {
+    int highest = NO_WATER;
+    for (int nr = r - RADIUS; nr <= r + RADIUS; nr++) {
+      for (int nc = c - RADIUS; nc <= c + RADIUS; nc++) {
+        if (nr != r && nc != c && mMap.isOnMap(nr, nc)) {
+          highest = Math.max(highest, waterElevation(nr, nc));
+        }
+      }
+    }
+    return highest;
+  }
+
+  private int waterElevation(int r, int c) {
+    return mMap.terrain.get(r, c) == TerrainType.WATER ? mMap.elevation.get(r, c) : NO_WATER;
+  }
+}
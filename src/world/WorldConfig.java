@@ -0,0 +1,231 @@
+package world;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Parameters of one world: how {@link TerrainGenerator} generates it, and the rules its entities
+ * live by. Every map has a copy of its own, see {@link WorldMap#getConfig()}, so worlds with
+ * different parameters can run side by side.
+ * <p>
+ * Parameters also go by name, see {@link #PARAMETERS}, for sweeps over them, see
+ * {@link BatchRunner}.
+ */
+public class WorldConfig {
+  public static final int DEFAULT_SIZE = 50;
+  // Life updates a bunny waits between matings
+  public static final int DEFAULT_MATING_COOLDOWN = 3;
+  // Life updates a plant waits between spreading seeds
+  public static final int DEFAULT_GERMINATION_COOLDOWN = 5;
+  // Tiles up to this fraction of the highest elevation are flooded
+  public static final double DEFAULT_WATER_TABLE_FRACTION = 1 / 3.0;
+
+  public static final String[] PARAMETERS = {
+      "width", "height", "seed", "plantSeeds", "animals", "matingCooldown", "germinationCooldown",
+      "waterTableFraction"
+  };
+
+  private int mWidth = DEFAULT_SIZE;
+  private int mHeight = DEFAULT_SIZE;
+  private long mSeed;
+  // Negative for width + height, see getPlantSeeds()
+  private int mPlantSeeds = -1;
+  private int mAnimals = 2;
+  private int mMatingCooldown = DEFAULT_MATING_COOLDOWN;
+  private int mGerminationCooldown = DEFAULT_GERMINATION_COOLDOWN;
+  private double mWaterTableFraction = DEFAULT_WATER_TABLE_FRACTION;
+  // Not a parameter of the world, so neither swept nor saved
+  private boolean mVerbose = true;
+
+  public WorldConfig() {
+  }
+
+  public WorldConfig(int width, int height, long seed) {
+    mWidth = width;
+    mHeight = height;
+    mSeed = seed;
+  }
+
+  public WorldConfig copy() {
+    WorldConfig copy = new WorldConfig(mWidth, mHeight, mSeed);
+    copy.mPlantSeeds = mPlantSeeds;
+    copy.mAnimals = mAnimals;
+    copy.mMatingCooldown = mMatingCooldown;
+    copy.mGerminationCooldown = mGerminationCooldown;
+    copy.mWaterTableFraction = mWaterTableFraction;
+    copy.mVerbose = mVerbose;
+    return copy;
+  }
+
+  public int getWidth() {
+    return mWidth;
+  }
+
+  public void setWidth(int width) {
+    mWidth = width;
+  }
+
+  public int getHeight() {
+    return mHeight;
+  }
+
+  public void setHeight(int height) {
+    mHeight = height;
+  }
+
+  /**
+   * @return the seed the map is generated from, see
+   * {@link TerrainGenerator#createMap(String, WorldConfig, java.util.concurrent.ForkJoinPool)}.
+   */
+  public long getSeed() {
+    return mSeed;
+  }
+
+  public void setSeed(long seed) {
+    mSeed = seed;
+  }
+
+  /**
+   * @return number of tiles plants are seeded on at generation, width + height unless set.
+   */
+  public int getPlantSeeds() {
+    return mPlantSeeds >= 0 ? mPlantSeeds : mWidth + mHeight;
+  }
+
+  public void setPlantSeeds(int plantSeeds) {
+    mPlantSeeds = plantSeeds;
+  }
+
+  /**
+   * @return number of bunnies placed at generation.
+   */
+  public int getAnimals() {
+    return mAnimals;
+  }
+
+  public void setAnimals(int animals) {
+    mAnimals = animals;
+  }
+
+  public int getMatingCooldown() {
+    return mMatingCooldown;
+  }
+
+  public void setMatingCooldown(int matingCooldown) {
+    mMatingCooldown = matingCooldown;
+  }
+
+  public int getGerminationCooldown() {
+    return mGerminationCooldown;
+  }
+
+  public void setGerminationCooldown(int germinationCooldown) {
+    mGerminationCooldown = germinationCooldown;
+  }
+
+  public double getWaterTableFraction() {
+    return mWaterTableFraction;
+  }
+
+  public void setWaterTableFraction(double waterTableFraction) {
+    mWaterTableFraction = waterTableFraction;
+  }
+
+  /**
+   * @return if {@link TerrainGenerator} prints what it generated, on by default.
+   */
+  public boolean isVerbose() {
+    return mVerbose;
+  }
+
+  public void setVerbose(boolean verbose) {
+    mVerbose = verbose;
+  }
+
+  /**
+   * Sets the parameter called {@param name}, one of {@link #PARAMETERS}, from its text form.
+   *
+   * @throws IllegalArgumentException for unknown parameters or values that do not parse.
+   */
+  public void set(String name, String value) {
+    switch (name) {
+      case "width":
+        mWidth = Integer.parseInt(value);
+        break;
+      case "height":
+        mHeight = Integer.parseInt(value);
+        break;
+      case "seed":
+        mSeed = Long.parseLong(value);
+        break;
+      case "plantSeeds":
+        mPlantSeeds = Integer.parseInt(value);
+        break;
+      case "animals":
+        mAnimals = Integer.parseInt(value);
+        break;
+      case "matingCooldown":
+        mMatingCooldown = Integer.parseInt(value);
+        break;
+      case "germinationCooldown":
+        mGerminationCooldown = Integer.parseInt(value);
+        break;
+      case "waterTableFraction":
+        mWaterTableFraction = Double.parseDouble(value);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown world parameter " + name);
+    }
+  }
+
+  /**
+   * @return the parameter called {@param name}, one of {@link #PARAMETERS}, in text form.
+   */
+  public String get(String name) {
+    switch (name) {
+      case "width":
+        return Integer.toString(mWidth);
+      case "height":
+        return Integer.toString(mHeight);
+      case "seed":
+        return Long.toString(mSeed);
+      case "plantSeeds":
+        return Integer.toString(getPlantSeeds());
+      case "animals":
+        return Integer.toString(mAnimals);
+      case "matingCooldown":
+        return Integer.toString(mMatingCooldown);
+      case "germinationCooldown":
+        return Integer.toString(mGerminationCooldown);
+      case "waterTableFraction":
+        return Double.toString(mWaterTableFraction);
+      default:
+        throw new IllegalArgumentException("Unknown world parameter " + name);
+    }
+  }
+
+  /**
+   * Writes all parameters, see {@link #readFrom(DataInput)}.
+   */
+  void writeTo(DataOutput out) throws IOException {
+    out.writeInt(mWidth);
+    out.writeInt(mHeight);
+    out.writeLong(mSeed);
+    out.writeInt(mPlantSeeds);
+    out.writeInt(mAnimals);
+    out.writeInt(mMatingCooldown);
+    out.writeInt(mGerminationCooldown);
+    out.writeDouble(mWaterTableFraction);
+  }
+
+  static WorldConfig readFrom(DataInput in) throws IOException {
+    WorldConfig config = new WorldConfig(in.readInt(), in.readInt(), in.readLong());
+    config.mPlantSeeds = in.readInt();
+    config.mAnimals = in.readInt();
+    config.mMatingCooldown = in.readInt();
+    config.mGerminationCooldown = in.readInt();
+    config.mWaterTableFraction = in.readDouble();
+    return config;
+  }
+}
@@ -0,0 +1,169 @@
+package world;
+
+import util.ChunkedTilePlane;
+import util.MappedTilePlane;
+import util.TilePlane;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary world format, big-endian:
+ * <pre>
+ *   int   magic ("ECOW")
+ *   int   format version
+ *   int   width
+ *   int   height
+ *   int   max elevation
+ *   int   reserved, 0
+ *   byte  terrain type, width * height tiles row by row (r * height + c)
+ *   short elevation, same layout
+ *   short water proximity (see WaterProximityField), same layout
+ * </pre>
+ * The water proximity plane is derived data, stored so that loading never has to scan the map.
+ * Loading maps the planes straight from the file.
+ */
+final class WorldFile {
+  static final int MAGIC = 0x45434f57;
+  static final int VERSION = 1;
+  private static final int HEADER_BYTES = 24;
+
+  private WorldFile() {
+  }
+
+  static void write(WorldMap map, Path path) throws IOException {
+    int width = map.getWidth();
+    int height = map.getHeight();
+    long terrainBytes = planeBytes(width, height, ChunkedTilePlane.Encoding.BYTE);
+    long elevationBytes = planeBytes(width, height, ChunkedTilePlane.Encoding.SHORT);
+
+    // write next to the target and swap it in at the end, the map may itself be mapped from there
+    Path tmp = Files.createTempFile(path.toAbsolutePath().getParent(), "world", ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(
+          tmp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC)
+              .putInt(VERSION)
+              .putInt(width)
+              .putInt(height)
+              .putInt(map.getMaxHeight())
+              .putInt(0)
+              .flip();
+        while (header.hasRemaining()) {
+          channel.write(header);
+        }
+
+        long offset = HEADER_BYTES;
+        copyPlane(map.terrain, mapPlane(channel, FileChannel.MapMode.READ_WRITE, offset,
+                                        terrainBytes, width, height,
+                                        ChunkedTilePlane.Encoding.BYTE));
+        offset += terrainBytes;
+        copyPlane(map.elevation, mapPlane(channel, FileChannel.MapMode.READ_WRITE, offset,
+                                          elevationBytes, width, height,
+                                          ChunkedTilePlane.Encoding.SHORT));
+        offset += elevationBytes;
+        copyPlane(map.getWaterProximity().getPlane(),
+                  mapPlane(channel, FileChannel.MapMode.READ_WRITE, offset, elevationBytes, width,
+                           height, ChunkedTilePlane.Encoding.SHORT));
+        channel.force(false);
+      }
+      Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * Opens the world file. The returned map reads its tiles from the file as they are needed, and
+   * changes to its terrain stay in memory rather than being written back. If the file is not
+   * writable, the terrain of the returned map cannot be changed.
+   */
+  static WorldMap read(Path path) throws IOException {
+    // private (copy-on-write) mappings need a writable channel, fall back to read-only tiles
+    FileChannel.MapMode mode = FileChannel.MapMode.PRIVATE;
+    FileChannel openedChannel;
+    try {
+      openedChannel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    } catch (AccessDeniedException e) {
+      openedChannel = FileChannel.open(path, StandardOpenOption.READ);
+      mode = FileChannel.MapMode.READ_ONLY;
+    }
+    try (FileChannel channel = openedChannel) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+      while (header.hasRemaining()) {
+        if (channel.read(header) < 0) {
+          throw new IOException(path + " is not a world file: truncated header");
+        }
+      }
+      header.flip();
+      if (header.getInt() != MAGIC) {
+        throw new IOException(path + " is not a world file");
+      }
+      int version = header.getInt();
+      if (version != VERSION) {
+        throw new IOException(path + " has unsupported world format version " + version);
+      }
+      int width = header.getInt();
+      int height = header.getInt();
+      int maxHeight = header.getInt();
+      if (width <= 0 || height <= 0) {
+        throw new IOException(path + " has invalid dimensions " + width + " x " + height);
+      }
+
+      long terrainBytes = planeBytes(width, height, ChunkedTilePlane.Encoding.BYTE);
+      long elevationBytes = planeBytes(width, height, ChunkedTilePlane.Encoding.SHORT);
+      if (channel.size() < HEADER_BYTES + terrainBytes + 2 * elevationBytes) {
+        throw new IOException(path + " is truncated");
+      }
+
+      // mappings stay valid once the channel is closed
+      long offset = HEADER_BYTES;
+      TilePlane terrain = mapPlane(channel, mode, offset, terrainBytes,
+                                   width, height, ChunkedTilePlane.Encoding.BYTE);
+      offset += terrainBytes;
+      TilePlane elevation = mapPlane(channel, mode, offset, elevationBytes,
+                                     width, height, ChunkedTilePlane.Encoding.SHORT);
+      offset += elevationBytes;
+      TilePlane waterProximity = mapPlane(channel, mode, offset, elevationBytes,
+                                          width, height, ChunkedTilePlane.Encoding.SHORT);
+
+      String fileName = path.getFileName().toString();
+      int extension = fileName.lastIndexOf('.');
+      String mapId = extension > 0 ? fileName.substring(0, extension) : fileName;
+      return new WorldMap(mapId, terrain, elevation, waterProximity, maxHeight);
+    }
+  }
+
+  private static long planeBytes(int width, int height, ChunkedTilePlane.Encoding encoding)
+      throws IOException {
+    long bytes = MappedTilePlane.getSizeInBytes(width, height, encoding);
+    if (bytes > Integer.MAX_VALUE) {
+      throw new IOException(
+          width + " x " + height + " maps are too large for world format version " + VERSION);
+    }
+    return bytes;
+  }
+
+  private static MappedTilePlane mapPlane(FileChannel channel, FileChannel.MapMode mode,
+                                          long offset, long bytes, int width, int height,
+                                          ChunkedTilePlane.Encoding encoding) throws IOException {
+    MappedByteBuffer buffer = channel.map(mode, offset, bytes);
+    return new MappedTilePlane(buffer, width, height, encoding);
+  }
+
+  private static void copyPlane(TilePlane from, TilePlane to) {
+    for (int r = 0; r < from.getWidth(); r++) {
+      for (int c = 0; c < from.getHeight(); c++) {
+        to.set(r, c, from.get(r, c));
+      }
+    }
+  }
+}
@@ -1,72 +1,442 @@
 package world;
 
 import entity.api.Entity;
+import entity.api.EntityList;
+import entity.api.EntityScheduler;
 import entity.api.Traits;
-import util.Vec2d;
+import entity.entities.PlantEntity;
+import entity.entities.PlantPopulation;
+import util.ChunkedTilePlane;
+import util.MetricsRegistry;
+import util.RandomStream;
+import util.Rect2d;
+import util.TilePlane;
+import util.WorldUtil;
 
-import java.io.File;
-import java.io.FileWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 public class WorldMap {
   private final String mMapId;
-  public int[][] terrainMap;
-  public int[][] elevationMap;
+  private final int mWidth;
+  private final int mHeight;
 
-  public final LinkedList<Entity> entityList;
-  public final LinkedList<Entity> nonOccupyingEntityList = new LinkedList<>();
-  public final LinkedList<Entity> occupyingEntityList = new LinkedList<>();
+  // Tile data, accessed through getTerrainType()/getElevation() and their setters. Terrain
+  // generation in this package writes to the planes directly and then calls onTerrainChanged().
+  final TilePlane terrain;
+  final TilePlane elevation;
+
+  public final EntityList entityList;
+  // When each entity next has work due, see Entity#getTicksUntilUpdate()
+  private final EntityScheduler mScheduler = new EntityScheduler(0);
 
   private int mMaxHeight;
+  private long mTick;
+
+  // Root of all randomness in the simulation, see splitRandom()
+  private long mSeed;
+  private RandomStream mRandom;
   private final LinkedList<Entity> newbornsList = new LinkedList<>();
 
+  // Spatial index of placed entities. A tile can hold at most one space occupying and one
+  // non-occupying entity, see canAdd().
+  private final EntityGrid mOccupyingGrid;
+  private final EntityGrid mNonOccupyingGrid;
+
+  private final WaterProximityField mWaterProximity;
+  // Built on first use, see getWaterDistanceField()
+  private volatile WaterDistanceField mWaterDistance;
+
+  // Dead entities stay on the map as corpses for this many updates before being reclaimed
+  public static final int DEFAULT_CORPSE_DECAY_TICKS = 5 * Entity.MOVES_PER_AGE;
+
+  // See getWaterDistance()
+  public static final int WATER_UNREACHABLE = WaterDistanceField.UNREACHABLE;
+  private int mCorpseDecayTicks = DEFAULT_CORPSE_DECAY_TICKS;
+
+  // Parameters the map was generated with and rules its entities follow
+  private WorldConfig mConfig;
+
+  // Plants stored in compact form, null unless useCompactPlants() was called
+  private PlantPopulation mPlants;
+
+  // Regions simulated in aggregate, null unless setAreaOfInterest() was called. The area asked for
+  // is taken over at the start of the next tick.
+  private LevelOfDetail mLevelOfDetail;
+  private final AtomicReference<Rect2d[]> mPendingAreaOfInterest = new AtomicReference<>();
+
+  // Parallel update mode, see updateEntitiesInParallel()
+  private ForkJoinPool mUpdatePool;
+  private volatile boolean mPlanningTick;
+  private final ThreadLocal<List<Entity>> mPlannedNewborns = new ThreadLocal<>();
+
+  // Tiles whose entities changed, for views; null unless trackDirtyTiles() was called
+  private DirtyTiles mDirtyTiles;
+  // Bumped whenever tile data changes, so views can tell when cached terrain went stale
+  private int mTerrainVersion;
+
+  // Null unless enableMetrics() was called
+  private WorldMetrics mMetrics;
+  private final TickProfiler mProfiler = new TickProfiler(this);
+
   public WorldMap(String mapId, int[][] terrainMap, int[][] elevationMap) {
-    mMapId = mapId;
-    this.terrainMap = terrainMap;
-    this.elevationMap = elevationMap;
-    entityList = new LinkedList<>();
+    this(mapId, terrainMap.length, terrainMap[0].length);
+    for (int r = 0; r < mWidth; r++) {
+      for (int c = 0; c < mHeight; c++) {
+        terrain.set(r, c, terrainMap[r][c]);
+        elevation.set(r, c, elevationMap[r][c]);
+      }
+    }
+    onTerrainChanged();
+  }
+
+  /**
+   * Creates a flat map of {@link TerrainType#GROUND} tiles at elevation 0.
+   */
+  public WorldMap(String mapId, int width, int height) {
+    this(mapId,
+         new ChunkedTilePlane(width, height, ChunkedTilePlane.Encoding.BYTE, TerrainType.GROUND),
+         new ChunkedTilePlane(width, height, ChunkedTilePlane.Encoding.SHORT, 0));
+  }
+
+  WorldMap(String mapId, TilePlane terrain, TilePlane elevation) {
+    this(mapId, terrain, elevation, null, 0);
     updateMetadata();
+    mWaterProximity.rebuild();
+    onTileDataChanged();
+  }
+
+  private void onTileDataChanged() {
+    mTerrainVersion++;
+    if (mDirtyTiles != null) {
+      mDirtyTiles.markAll();
+    }
+  }
+
+  /**
+   * @return a number that changes whenever terrain type or elevation of any tile changes.
+   */
+  int getTerrainVersion() {
+    return mTerrainVersion;
+  }
+
+  /**
+   * Starts recording which tiles had entity changes, see {@link #getDirtyTiles()}.
+   */
+  void trackDirtyTiles() {
+    if (mDirtyTiles == null) {
+      mDirtyTiles = new DirtyTiles(mWidth, mHeight);
+    }
+  }
+
+  /**
+   * @return tiles changed since the view last drained them, or null if not tracking.
+   */
+  DirtyTiles getDirtyTiles() {
+    return mDirtyTiles;
+  }
+
+  /**
+   * Starts collecting {@link WorldMetrics} for this map. Forks start without metrics.
+   *
+   * @return the map's metrics.
+   */
+  public WorldMetrics enableMetrics() {
+    if (mMetrics == null) {
+      mMetrics = new WorldMetrics(new MetricsRegistry());
+      mMetrics.samplePopulation(this);
+    }
+    return mMetrics;
+  }
+
+  /**
+   * @return the map's metrics, or null if not enabled.
+   */
+  public WorldMetrics getMetrics() {
+    return mMetrics;
+  }
+
+  /**
+   * Records that what is drawn on the tile may have changed. Entities call this when their
+   * appearance changes; moves, additions and removals are recorded by the map. Must not be called
+   * while {@link #isPlanningTick() planning}.
+   */
+  public void markTileChanged(int r, int c) {
+    if (mDirtyTiles != null) {
+      mDirtyTiles.mark(r, c);
+    }
+  }
+
+  // Takes over already computed derived data, see WorldFile.
+  WorldMap(String mapId, TilePlane terrain, TilePlane elevation, TilePlane waterProximity,
+           int maxHeight) {
+    mMapId = mapId;
+    mWidth = terrain.getWidth();
+    mHeight = terrain.getHeight();
+    this.terrain = terrain;
+    this.elevation = elevation;
+    entityList = new EntityList();
+    mOccupyingGrid = new EntityGrid(mWidth, mHeight);
+    mNonOccupyingGrid = new EntityGrid(mWidth, mHeight);
+    mMaxHeight = maxHeight;
+    long seed = ThreadLocalRandom.current().nextLong();
+    mConfig = new WorldConfig(mWidth, mHeight, seed);
+    setSeed(seed);
+    mWaterProximity = waterProximity != null
+                      ? new WaterProximityField(this, waterProximity)
+                      : new WaterProximityField(this);
+  }
+
+  /**
+   * Opens a map written by {@link #save(Path)}. Tiles are mapped from the file rather than read
+   * up front, so this is fast regardless of map size. Terrain changes made to the returned map are
+   * not written back to the file.
+   */
+  public static WorldMap load(Path path) throws IOException {
+    return WorldFile.read(path);
   }
 
   private void updateMetadata() {
+    mMaxHeight = 0;
     for (int r = 0; r < getWidth(); r++) {
       for (int c = 0; c < getHeight(); c++) {
-        if (elevationMap[r][c] > mMaxHeight) {
-          mMaxHeight = elevationMap[r][c];
+        if (elevation.get(r, c) > mMaxHeight) {
+          mMaxHeight = elevation.get(r, c);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reseeds the map's random stream. Entities created afterwards, and everything they create,
+   * draw from streams derived from this seed, so a run can be replayed from its seed. The seed of
+   * the map's {@link #getConfig() config} follows.
+   */
+  public void setSeed(long seed) {
+    setRandom(seed, new RandomStream(seed));
+  }
+
+  void setRandom(long seed, RandomStream random) {
+    mSeed = seed;
+    mRandom = random;
+    mConfig.setSeed(seed);
+  }
+
+  public long getSeed() {
+    return mSeed;
+  }
+
+  RandomStream getRandom() {
+    return mRandom;
+  }
+
+  /**
+   * @return a new stream split off the map's random stream. Not thread safe, only call from the
+   * thread driving the map.
+   */
+  public RandomStream splitRandom() {
+    return mRandom.split();
+  }
+
+  public int getTerrainType(int r, int c) {
+    return terrain.get(r, c);
+  }
+
+  public int getElevation(int r, int c) {
+    return elevation.get(r, c);
+  }
+
+  /**
+   * Changes the terrain type of the tile, keeping derived terrain data current.
+   */
+  public void setTerrainType(int r, int c, int terrainType) {
+    terrain.set(r, c, terrainType);
+    mWaterProximity.update(r, c);
+    if (mWaterDistance != null) {
+      mWaterDistance.update(r, c);
+    }
+    if (mLevelOfDetail != null) {
+      mLevelOfDetail.onTileChanged(r, c);
+    }
+    onTileDataChanged();
+  }
+
+  /**
+   * Changes the elevation of the tile, keeping derived terrain data current.
+   */
+  public void setElevation(int r, int c, int elevation) {
+    this.elevation.set(r, c, elevation);
+    mMaxHeight = Math.max(mMaxHeight, elevation);
+    mWaterProximity.update(r, c);
+    if (mLevelOfDetail != null) {
+      mLevelOfDetail.onTileChanged(r, c);
+    }
+    onTileDataChanged();
+  }
+
+  /**
+   * Recomputes data derived from the terrain, and releases tile storage that is no longer needed.
+   * Needed after bulk edits of the tile planes, as terrain generation does.
+   */
+  public void onTerrainChanged() {
+    terrain.compact();
+    elevation.compact();
+    updateMetadata();
+    mWaterProximity.rebuild();
+    if (mWaterDistance != null) {
+      mWaterDistance.rebuild();
+    }
+    if (mLevelOfDetail != null) {
+      mLevelOfDetail.onTerrainChanged();
+    }
+  }
+
+  /**
+   * @return if a water tile in the neighborhood of the tile lies at most {@param maxDepth} below
+   * it.
+   */
+  public boolean hasWaterNearby(int r, int c, int maxDepth) {
+    int highestWater = mWaterProximity.getHighestWaterElevation(r, c);
+    return highestWater != WaterProximityField.NO_WATER
+           && elevation.get(r, c) - highestWater <= maxDepth;
+  }
+
+  /**
+   * @return how many steps up, down, left or right over ground a terrestrial entity on the tile
+   * needs to get next to water, 0 for water tiles, or {@link #WATER_UNREACHABLE}. Entities in the
+   * way are not counted.
+   */
+  public int getWaterDistance(int r, int c) {
+    return getWaterDistanceField().getDistance(r, c);
+  }
+
+  /**
+   * @return the direction (as in {@link Entity#getDirection()}) of the free tile next to the tile
+   * that is closest to water, or -1 if no free neighbor leads to water.
+   */
+  public int getDirectionToWater(int r, int c) {
+    return getWaterDistanceField().getDirectionToWater(r, c);
+  }
+
+  /**
+   * @return if a tile up, down, left or right of the tile is water.
+   */
+  public boolean isNextToWater(int r, int c) {
+    return getWaterDistanceField().isNextToWater(r, c);
+  }
+
+  // Maps without terrestrial entities looking for water never pay for the field.
+  private WaterDistanceField getWaterDistanceField() {
+    WaterDistanceField field = mWaterDistance;
+    if (field == null) {
+      // may be first asked for by several planning threads at once
+      synchronized (this) {
+        field = mWaterDistance;
+        if (field == null) {
+          field = new WaterDistanceField(this);
+          field.rebuild();
+          mWaterDistance = field;
         }
       }
     }
+    return field;
   }
 
   public int getWidth() {
-    return terrainMap.length;
+    return mWidth;
   }
 
   public int getHeight() {
-    return terrainMap[0].length;
+    return mHeight;
   }
 
   public int getMaxHeight() {
     return mMaxHeight;
   }
 
-  public void save() {
-    try {
-      PrintWriter out = new PrintWriter(new FileWriter(new File(mMapId + ".txt")));
+  public String getMapId() {
+    return mMapId;
+  }
 
-      out.println(getWidth() + " " + getHeight());
-      for (int r = 0; r < getWidth(); r++) {
-        for (int c = 0; c < getHeight(); c++) {
-          out.print(elevationMap[r][c] + " ");
-        }
-        out.println();
-      }
-      out.close();
-    } catch (IOException e) {
+  /**
+   * Writes the terrain of the map (not its entities) in the binary world format, see
+   * {@link WorldFile}.
+   */
+  public void save(Path path) throws IOException {
+    WorldFile.write(this, path);
+  }
+
+  /**
+   * Writes the complete state of the world, terrain and all entities, so that it can be resumed
+   * with {@link #restore(InputStream)}. Only call between ticks.
+   */
+  public void snapshot(OutputStream out) throws IOException {
+    GZIPOutputStream compressed = new GZIPOutputStream(out);
+    DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(compressed));
+    WorldSnapshot.write(this, dataOut);
+    dataOut.flush();
+    compressed.finish();
+  }
 
+  /**
+   * Recreates a world written by {@link #snapshot(OutputStream)}. Runtime options such as parallel
+   * updates are not part of the snapshot.
+   */
+  public static WorldMap restore(InputStream in) throws IOException {
+    return WorldSnapshot.read(
+        new DataInputStream(new BufferedInputStream(new GZIPInputStream(in))));
+  }
+
+  /**
+   * @return an independent copy of the world in its current state, sharing no mutable state with
+   * it, to branch experiments from. Runs with the same update options. Only call between ticks.
+   */
+  public WorldMap fork() {
+    WorldMap copy = new WorldMap(mMapId, terrain.copy(), elevation.copy(),
+                                 mWaterProximity.getPlane().copy(), mMaxHeight);
+    copy.setTick(mTick);
+    copy.setRandom(mSeed, mRandom.copy());
+    copy.mCorpseDecayTicks = mCorpseDecayTicks;
+    copy.mConfig = mConfig.copy();
+    copy.mUpdatePool = mUpdatePool;
+    try {
+      ByteArrayOutputStream entityBytes = new ByteArrayOutputStream();
+      WorldSnapshot.writeEntities(this, new DataOutputStream(entityBytes));
+      WorldSnapshot.readEntities(
+          copy, new DataInputStream(new ByteArrayInputStream(entityBytes.toByteArray())));
+    } catch (IOException e) {
+      // in-memory streams, only thrown for entity types that cannot be copied
+      throw new IllegalStateException("Cannot fork " + mMapId, e);
+    }
+    if (mPlants != null) {
+      copy.mPlants = mPlants.copyFor(copy);
     }
+    if (mLevelOfDetail != null) {
+      copy.mLevelOfDetail = mLevelOfDetail.copyFor(copy);
+    }
+    copy.mPendingAreaOfInterest.set(mPendingAreaOfInterest.get());
+    return copy;
+  }
+
+  WaterProximityField getWaterProximity() {
+    return mWaterProximity;
   }
 
   /**
@@ -75,91 +445,435 @@ public class WorldMap {
    * @return if the entity was successfully added or not.
    */
   public boolean addEntity(Entity entity, boolean isNewborn) {
-    LinkedList<Entity> entities = getEntitiesAtPosition(entity.getCurR(), entity.getCurC());
-
     // check if valid space for this type of entity
-    if (!canAdd(entities, entity)) {
+    if (!canAdd(entity, entity.getCurR(), entity.getCurC())) {
       return false;
     }
 
     if (isNewborn) {
+      if (mPlanningTick) {
+        return mPlannedNewborns.get().add(entity);
+      }
       return newbornsList.add(entity);
     }
-    if (entity instanceof Traits.SpaceOccupying) {
-      occupyingEntityList.add(entity);
-    } else {
-      nonOccupyingEntityList.add(entity);
-    }
+    getGridFor(entity).set(entity.getCurR(), entity.getCurC(), entity);
     entityList.add(entity);
+    mScheduler.add(entity);
+    markTileChanged(entity.getCurR(), entity.getCurC());
     return true;
   }
 
+  /**
+   * Moves every plant on the map into a {@link PlantPopulation}, which then holds all plants for
+   * the rest of the map's life. New plants must be added through {@link #getPlantPopulation()}.
+   */
+  public void useCompactPlants() {
+    if (mPlants != null) {
+      return;
+    }
+    mPlants = new PlantPopulation(this, splitRandom());
+    for (Entity e : entityList.toArray()) {
+      if (e instanceof PlantEntity) {
+        removeEntity(e);
+        mPlants.add((PlantEntity) e);
+      }
+    }
+  }
+
+  /**
+   * @return the compact plant storage, or null if plants are regular entities.
+   */
+  public PlantPopulation getPlantPopulation() {
+    return mPlants;
+  }
+
+  /**
+   * Simulates only the regions of the map overlapping {@param areas} entity by entity, and the
+   * rest as aggregate populations updated once per life update, see
+   * {@link entity.entities.RegionPopulation}. Regions are materialized into entities again when
+   * they come into the area of interest, so the area would typically be a view's viewport and any
+   * regions being studied. Rects are in tiles, x and width along r, y and height along c. Passing
+   * no areas aggregates the whole map, passing null simulates it all in detail again.
+   * <p>
+   * May be called from any thread, takes effect at the start of the next tick. Entities cannot
+   * move or be born into aggregated regions.
+   */
+  public void setAreaOfInterest(Rect2d... areas) {
+    mPendingAreaOfInterest.set(areas != null
+                               ? areas.clone()
+                               : new Rect2d[]{new Rect2d(0, 0, mWidth, mHeight)});
+  }
+
+  /**
+   * @return if the tile lies in a region simulated in aggregate, see
+   * {@link #setAreaOfInterest(Rect2d...)}.
+   */
+  public boolean isAggregated(int r, int c) {
+    return mLevelOfDetail != null && isOnMap(r, c) && mLevelOfDetail.isAggregated(r, c);
+  }
+
+  LevelOfDetail getLevelOfDetail() {
+    return mLevelOfDetail;
+  }
+
+  void setLevelOfDetail(LevelOfDetail levelOfDetail) {
+    mLevelOfDetail = levelOfDetail;
+  }
+
+  /**
+   * Frees the entity storage of the chunk holding the tile, all of whose entities were removed.
+   */
+  void releaseEntityStorage(int r, int c) {
+    mOccupyingGrid.releaseChunk(r, c);
+    mNonOccupyingGrid.releaseChunk(r, c);
+  }
+
+  /**
+   * Enables the parallel update mode when {@param pool} is non-null, see
+   * {@link #updateEntitiesInParallel(Entity[])}. Passing null restores sequential updates.
+   */
+  public void setParallelUpdates(ForkJoinPool pool) {
+    mUpdatePool = pool;
+  }
+
+  /**
+   * @return true while entities are planning their update against the previous tick. Entities
+   * must not mutate the map or other entities while this is set, see
+   * {@link Entity#commitPlannedUpdate()}.
+   */
+  public boolean isPlanningTick() {
+    return mPlanningTick;
+  }
+
+  /**
+   * Advances the map by a tick. Only entities with work due are updated, see
+   * {@link Entity#getTicksUntilUpdate()}.
+   */
   public void updateEntities() {
-    for (Entity e : entityList) {
-      e.update();
+    mProfiler.beginTick();
+    Rect2d[] areaOfInterest = mPendingAreaOfInterest.getAndSet(null);
+    if (areaOfInterest != null || mLevelOfDetail != null) {
+      mProfiler.beginPhase(WorldMetrics.Phase.REGIONS);
+      if (areaOfInterest != null) {
+        if (mLevelOfDetail == null) {
+          mLevelOfDetail = new LevelOfDetail(this);
+        }
+        mLevelOfDetail.setAreaOfInterest(areaOfInterest);
+      }
+      mLevelOfDetail.update(mTick);
+    }
+    mProfiler.beginPhase(WorldMetrics.Phase.ENTITIES);
+    Entity[] due = mScheduler.collectDue(mTick);
+    if (mUpdatePool != null) {
+      updateEntitiesInParallel(due);
+    } else {
+      for (Entity e : due) {
+        e.update();
+      }
+    }
+    if (mPlants != null) {
+      mProfiler.beginPhase(WorldMetrics.Phase.PLANTS);
+      mPlants.update();
     }
 
+    mProfiler.beginPhase(WorldMetrics.Phase.NEWBORNS);
     for (Entity ne : newbornsList) {
       // no longer need to delay addition now that we aren't modifying the list
-      addEntity(ne, false /* isNewborn */);
+      if (addEntity(ne, false /* isNewborn */) && mMetrics != null) {
+        mMetrics.recordNewborn(ne);
+      }
     }
     newbornsList.clear();
-  }
 
-  public void removeEntity(Entity entity) {
-    entityList.remove(entity);
-    if (entity instanceof Traits.SpaceOccupying) {
-      occupyingEntityList.remove(entity);
-    } else {
-      nonOccupyingEntityList.remove(entity);
+    mProfiler.beginPhase(WorldMetrics.Phase.CORPSES);
+    reclaimCorpses(due);
+    for (Entity e : due) {
+      if (entityList.contains(e)) {
+        mScheduler.schedule(e, mTick + e.getTicksUntilUpdate());
+      }
     }
+    mTick++;
+    mProfiler.endTick();
   }
 
-  public LinkedList<Entity> getEntitiesAtPosition(int r, int c) {
-    LinkedList<Entity> entities = new LinkedList<>();
-    for (Entity e : nonOccupyingEntityList) {
-      if (e.getCurR() == r && e.getCurC() == c) {
-        entities.add(e);
+  /**
+   * Sets how many updates dead entities stay on the map before they are reclaimed, 0 reclaims them
+   * at the end of the tick they died in.
+   */
+  public void setCorpseDecayTicks(int corpseDecayTicks) {
+    mCorpseDecayTicks = corpseDecayTicks;
+    // corpses were scheduled for the old decay time
+    for (Entity e : entityList) {
+      if (e.getHealth() <= 0) {
+        mScheduler.wake(e, mTick);
       }
     }
-    for (Entity e : occupyingEntityList) {
-      if (e.getCurR() == r && e.getCurC() == c) {
-        entities.add(e);
+  }
+
+  public int getCorpseDecayTicks() {
+    return mCorpseDecayTicks;
+  }
+
+  /**
+   * @return the parameters of this world. Entities read their rules from it as they go, so only
+   * change it between ticks.
+   */
+  public WorldConfig getConfig() {
+    return mConfig;
+  }
+
+  /**
+   * Replaces the parameters of this world with a copy of {@param config}. Only call between ticks.
+   */
+  public void setConfig(WorldConfig config) {
+    mConfig = config.copy();
+  }
+
+  /**
+   * @return number of completed {@link #updateEntities()} calls.
+   */
+  public long getTick() {
+    return mTick;
+  }
+
+  void setTick(long tick) {
+    mTick = tick;
+    mScheduler.reset(tick);
+    for (Entity e : entityList) {
+      mScheduler.add(e);
+    }
+  }
+
+  // Removes the dead entities whose corpse has decayed. Corpses are only due when they have, so
+  // only the entities updated this tick need checking.
+  private void reclaimCorpses(Entity[] due) {
+    // due is in list order, so going backwards removes corpses from the highest list index down,
+    // as walking the whole list would, and the entities moved into freed slots end up the same
+    for (int i = due.length - 1; i >= 0; i--) {
+      Entity e = due[i];
+      if (e.getHealth() <= 0 && e.getTicksSinceDeath() >= mCorpseDecayTicks) {
+        removeEntity(e);
       }
     }
-    return entities;
+    if (mPlants != null) {
+      mPlants.reclaimCorpses(mCorpseDecayTicks);
+    }
   }
 
-  public LinkedList<Vec2d> getPossibleSpawnPoints(Entity entity) {
-    LinkedList<Vec2d> spots = new LinkedList<>();
-    for (int dr = -1; dr <= 1; dr++) {
-      for (int dc = -1; dc <= 1; dc++) {
-        if (dr == 0 && dc == 0) {
-          continue;
-        }
-        if (canAdd(getEntitiesAtPosition(entity.getCurR() + dr, entity.getCurC() + dc), entity)) {
-          spots.add(new Vec2d(entity.getCurR() + dr, entity.getCurC() + dc));
+  /**
+   * Two phase update. Every due entity first updates its own state and plans its moves, matings and
+   * spawns on the fork-join pool, while the map is only read and other entities only through what
+   * they recorded in {@link Entity#snapshotForPlanning()} before planning began. The plans are
+   * then committed one entity at a time in list order, so conflicts (e.g. two entities wanting the
+   * same tile) are always resolved the same way regardless of thread scheduling.
+   */
+  private void updateEntitiesInParallel(Entity[] entities) {
+    // planning entities read each other's state only from these snapshots
+    for (Entity e : entities) {
+      e.snapshotForPlanning();
+    }
+    PlanTask plan = new PlanTask(entities, 0, entities.length);
+    mPlanningTick = true;
+    try {
+      mUpdatePool.invoke(plan);
+    } finally {
+      mPlanningTick = false;
+    }
+
+    mProfiler.beginPhase(WorldMetrics.Phase.COMMIT);
+    for (Entity e : entities) {
+      e.commitPlannedUpdate();
+    }
+    plan.collectNewborns(newbornsList);
+  }
+
+  private class PlanTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private static final int ENTITIES_PER_TASK = 1024;
+
+    private final Entity[] mEntities;
+    private final int mFrom;
+    private final int mTo;
+    private PlanTask mLeft;
+    private PlanTask mRight;
+    private List<Entity> mNewborns;
+
+    private PlanTask(Entity[] entities, int from, int to) {
+      mEntities = entities;
+      mFrom = from;
+      mTo = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (mTo - mFrom > ENTITIES_PER_TASK) {
+        int mid = (mFrom + mTo) >>> 1;
+        mLeft = new PlanTask(mEntities, mFrom, mid);
+        mRight = new PlanTask(mEntities, mid, mTo);
+        invokeAll(mLeft, mRight);
+        return;
+      }
+      mNewborns = new ArrayList<>();
+      mPlannedNewborns.set(mNewborns);
+      try {
+        for (int i = mFrom; i < mTo; i++) {
+          mEntities[i].update();
         }
+      } finally {
+        mPlannedNewborns.remove();
       }
     }
-    return spots;
-  }
 
-  public boolean hasEmptySpace(int r, int c) {
-    for (Entity e : getEntitiesAtPosition(r, c)) {
-      if (e instanceof Traits.SpaceOccupying) {
-        return false;
+    // Walks the task tree in entity order so newborns are queued deterministically.
+    private void collectNewborns(List<Entity> out) {
+      if (mNewborns != null) {
+        out.addAll(mNewborns);
+      } else {
+        mLeft.collectNewborns(out);
+        mRight.collectNewborns(out);
       }
     }
+  }
+
+  /**
+   * Puts {@param entity} in the spatial index only, so entities on the map see it on its tile but
+   * it is never updated. Used for copies of the entities another process owns, see
+   * {@link ShardWorker}.
+   *
+   * @return if the tile had room for the entity.
+   */
+  boolean placeGhost(Entity entity) {
+    if (!canAdd(entity, entity.getCurR(), entity.getCurC())) {
+      return false;
+    }
+    getGridFor(entity).set(entity.getCurR(), entity.getCurC(), entity);
     return true;
   }
 
-  private boolean canAdd(LinkedList<Entity> entitiesInLocation, Entity entity) {
-    for (Entity e : entitiesInLocation) {
-      if (entity instanceof Traits.SpaceOccupying == e instanceof Traits.SpaceOccupying) {
-        return false;
+  /**
+   * Takes an entity placed by {@link #placeGhost(Entity)} off the spatial index.
+   */
+  void removeGhost(Entity entity) {
+    EntityGrid grid = getGridFor(entity);
+    if (grid.get(entity.getCurR(), entity.getCurC()) == entity) {
+      grid.set(entity.getCurR(), entity.getCurC(), null);
+    }
+  }
+
+  public void removeEntity(Entity entity) {
+    if (!entityList.remove(entity)) {
+      return;
+    }
+    mScheduler.remove(entity);
+    EntityGrid grid = getGridFor(entity);
+    if (grid.get(entity.getCurR(), entity.getCurC()) == entity) {
+      grid.set(entity.getCurR(), entity.getCurC(), null);
+    }
+    markTileChanged(entity.getCurR(), entity.getCurC());
+  }
+
+  /**
+   * Keeps the spatial index current, must be called whenever a placed entity changes position.
+   */
+  public void onEntityMoved(Entity entity, int fromR, int fromC) {
+    EntityGrid grid = getGridFor(entity);
+    if (grid.get(fromR, fromC) != entity) {
+      // not placed on the map (e.g. still a newborn), nothing to index
+      return;
+    }
+    grid.set(fromR, fromC, null);
+    grid.set(entity.getCurR(), entity.getCurC(), entity);
+    if (mMetrics != null) {
+      mMetrics.recordMove();
+    }
+    markTileChanged(fromR, fromC);
+    markTileChanged(entity.getCurR(), entity.getCurC());
+  }
+
+  /**
+   * @return the space occupying entity at the tile, or null if there is none or the tile is not on
+   * the map.
+   */
+  public Entity getOccupyingEntityAt(int r, int c) {
+    return isOnMap(r, c) ? mOccupyingGrid.get(r, c) : null;
+  }
+
+  /**
+   * @return the non-occupying entity at the tile, or null if there is none or the tile is not on
+   * the map.
+   */
+  public Entity getNonOccupyingEntityAt(int r, int c) {
+    return isOnMap(r, c) ? mNonOccupyingGrid.get(r, c) : null;
+  }
+
+  /**
+   * @return the non-occupying and then the space occupying entity at the tile, as far as there are
+   * any, in a list that cannot be changed.
+   * @deprecated look the two up with {@link #getNonOccupyingEntityAt} and
+   * {@link #getOccupyingEntityAt}, which do not allocate a list.
+   */
+  @Deprecated
+  public List<Entity> getEntitiesAtPosition(int r, int c) {
+    Entity nonOccupying = getNonOccupyingEntityAt(r, c);
+    Entity occupying = getOccupyingEntityAt(r, c);
+    if (nonOccupying == null) {
+      return occupying == null ? List.of() : List.of(occupying);
+    }
+    return occupying == null ? List.of(nonOccupying) : List.of(nonOccupying, occupying);
+  }
+
+  public boolean isOnMap(int r, int c) {
+    return !WorldUtil.ifInvalidIndex(r, c, getWidth(), getHeight());
+  }
+
+  /**
+   * @return how many of the squares touching {@param entity} could take another entity like it.
+   */
+  public int getPossibleSpawnPointCount(Entity entity) {
+    int count = 0;
+    for (int i = 0; i < WorldUtil.ADJACENT_OFFSETS.length; i += 2) {
+      if (canAdd(entity, entity.getCurR() + WorldUtil.ADJACENT_OFFSETS[i],
+                 entity.getCurC() + WorldUtil.ADJACENT_OFFSETS[i + 1])) {
+        count++;
       }
     }
-    return true;
+    return count;
+  }
+
+  /**
+   * @return the {@param n}th (from 0, row-major) spawn point counted by
+   * {@link #getPossibleSpawnPointCount}, as r * height + c, or -1 if there are not that many.
+   */
+  public int getPossibleSpawnPoint(Entity entity, int n) {
+    for (int i = 0; i < WorldUtil.ADJACENT_OFFSETS.length; i += 2) {
+      int r = entity.getCurR() + WorldUtil.ADJACENT_OFFSETS[i];
+      int c = entity.getCurC() + WorldUtil.ADJACENT_OFFSETS[i + 1];
+      if (canAdd(entity, r, c) && n-- == 0) {
+        return r * mHeight + c;
+      }
+    }
+    return -1;
+  }
+
+  public boolean hasEmptySpace(int r, int c) {
+    if (mMetrics != null) {
+      mMetrics.recordOccupancyCheck();
+    }
+    return getOccupyingEntityAt(r, c) == null && !isAggregated(r, c);
+  }
+
+  private boolean canAdd(Entity entity, int r, int c) {
+    if (mMetrics != null) {
+      mMetrics.recordOccupancyCheck();
+    }
+    // only one entity of each kind (space occupying or not) can share a tile
+    if (!isOnMap(r, c) || getGridFor(entity).get(r, c) != null || isAggregated(r, c)) {
+      return false;
+    }
+    return entity instanceof Traits.SpaceOccupying || mPlants == null || !mPlants.hasPlantAt(r, c);
+  }
+
+  private EntityGrid getGridFor(Entity entity) {
+    return entity instanceof Traits.SpaceOccupying ? mOccupyingGrid : mNonOccupyingGrid;
   }
 }
@@ -0,0 +1,162 @@
+package world;
+
+import entity.api.Entity;
+import entity.api.GrowthStage;
+import entity.entities.PlantEntity;
+import entity.entities.PlantPopulation;
+import util.MetricsRegistry;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * What happens inside a map's ticks: how long each tick and {@link Phase} takes, births, deaths,
+ * moves and germinations, occupancy checks, and the population by species and growth stage. Kept
+ * in a {@link MetricsRegistry} that can be polled or dumped while the map runs.
+ * <p>
+ * Only collected once enabled with {@link WorldMap#enableMetrics()}; until then the map only pays
+ * for a null check where events happen.
+ */
+public class WorldMetrics {
+  // the population only changes stage on life updates, so it is counted that often
+  private static final int POPULATION_SAMPLE_TICKS = Entity.MOVES_PER_AGE;
+  private static final GrowthStage[] STAGES = GrowthStage.values();
+
+  /**
+   * Parts of {@link WorldMap#updateEntities()}, in the order they run.
+   */
+  public enum Phase {
+    // changing and updating the regions simulated in aggregate, see WorldMap#setAreaOfInterest()
+    REGIONS,
+    // updating entities, or planning their updates in parallel mode
+    ENTITIES,
+    // committing planned updates in parallel mode
+    COMMIT,
+    PLANTS,
+    NEWBORNS,
+    CORPSES;
+
+    final String mName = name().toLowerCase();
+  }
+
+  private final MetricsRegistry mRegistry;
+  private final MetricsRegistry.Counter mBirths;
+  private final MetricsRegistry.Counter mGerminations;
+  private final MetricsRegistry.Counter mDeaths;
+  private final MetricsRegistry.Counter mMoves;
+  private final MetricsRegistry.Counter mOccupancyChecks;
+  private final MetricsRegistry.Histogram mTickNanos;
+  private final MetricsRegistry.Histogram mTickAllocatedBytes;
+  private final MetricsRegistry.Histogram[] mPhaseNanos;
+
+  // species -> count per growth stage at the last sample, replaced whole on every sample
+  private volatile Map<String, int[]> mPopulation = new HashMap<>();
+
+  WorldMetrics(MetricsRegistry registry) {
+    mRegistry = registry;
+    mBirths = registry.counter("entities.births");
+    mGerminations = registry.counter("plants.germinations");
+    mDeaths = registry.counter("entities.deaths");
+    mMoves = registry.counter("entities.moves");
+    mOccupancyChecks = registry.counter("map.occupancyChecks");
+    mTickNanos = registry.histogram("tick.nanos");
+    mTickAllocatedBytes = registry.histogram("tick.allocatedBytes");
+    mPhaseNanos = new MetricsRegistry.Histogram[Phase.values().length];
+    for (Phase phase : Phase.values()) {
+      mPhaseNanos[phase.ordinal()] = registry.histogram("phase." + phase.mName + ".nanos");
+    }
+  }
+
+  public MetricsRegistry getRegistry() {
+    return mRegistry;
+  }
+
+  /**
+   * Counts an entity or compact plant dying. Safe to call while planning.
+   */
+  public void recordDeath() {
+    mDeaths.increment();
+  }
+
+  /**
+   * Counts a seed taking root in a {@link PlantPopulation}.
+   */
+  public void recordGermination() {
+    mGerminations.increment();
+  }
+
+  void recordNewborn(Entity entity) {
+    if (entity instanceof PlantEntity) {
+      mGerminations.increment();
+    } else {
+      mBirths.increment();
+    }
+  }
+
+  void recordMove() {
+    mMoves.increment();
+  }
+
+  void recordOccupancyCheck() {
+    mOccupancyChecks.increment();
+  }
+
+  void recordPhase(Phase phase, long nanos) {
+    mPhaseNanos[phase.ordinal()].record(nanos);
+  }
+
+  /**
+   * @param allocatedBytes bytes allocated by the thread running the tick, or -1 if unknown. Pool
+   *                       threads of the parallel mode are not counted.
+   */
+  void recordTick(WorldMap map, long nanos, long allocatedBytes) {
+    mTickNanos.record(nanos);
+    if (allocatedBytes >= 0) {
+      mTickAllocatedBytes.record(allocatedBytes);
+    }
+    if (map.getTick() % POPULATION_SAMPLE_TICKS == 0) {
+      samplePopulation(map);
+    }
+  }
+
+  /**
+   * Counts the map's population, call on the thread updating the map. Done every few ticks anyway.
+   */
+  void samplePopulation(WorldMap map) {
+    Map<String, int[]> population = new HashMap<>();
+    for (Entity e : map.entityList) {
+      population.computeIfAbsent(e.getClass().getSimpleName(), s -> new int[STAGES.length])
+          [e.getGrowthStage().ordinal()]++;
+    }
+    PlantPopulation plants = map.getPlantPopulation();
+    if (plants != null) {
+      int[] counts = population.computeIfAbsent(
+          PlantEntity.class.getSimpleName(), s -> new int[STAGES.length]);
+      int[] compact = plants.countByStage();
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] += compact[i];
+      }
+    }
+    if (map.getLevelOfDetail() != null) {
+      map.getLevelOfDetail().countByStage(population);
+    }
+    for (String species : population.keySet()) {
+      if (!mPopulation.containsKey(species)) {
+        for (GrowthStage stage : STAGES) {
+          mRegistry.gauge("population." + species + "." + stage,
+                          () -> getPopulation(species, stage));
+        }
+      }
+    }
+    mPopulation = population;
+  }
+
+  /**
+   * @return number of {@param species} (entity class simple name) entities in {@param stage} at
+   * the last sample.
+   */
+  public int getPopulation(String species, GrowthStage stage) {
+    int[] counts = mPopulation.get(species);
+    return counts == null ? 0 : counts[stage.ordinal()];
+  }
+}
@@ -0,0 +1,178 @@
+package world;
+
+import entity.api.Entity;
+import entity.entities.BunnyEntity;
+import entity.entities.PlantEntity;
+import util.ChunkedTilePlane;
+import util.RandomStream;
+import util.TilePlane;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Binary snapshot of a running world: terrain, map settings, every entity in update order and the
+ * compact plant population. Layout:
+ * <pre>
+ *   int    magic ("ECOS")
+ *   int    format version
+ *   UTF    map id
+ *   int    width, height
+ *   long   tick
+ *   int    corpse decay ticks
+ *   ...    WorldConfig#writeTo data
+ *   long   root seed, then the state of the map's random stream
+ *   byte   terrain type per tile, row by row
+ *   short  elevation per tile, row by row
+ *   int    entity count, then per entity a type byte and its Entity#writeState data
+ *   bool   whether plants are compact, then PlantPopulation#writeTo data
+ *   bool   whether regions are simulated in aggregate, then LevelOfDetail#writeTo data
+ * </pre>
+ */
+final class WorldSnapshot {
+  static final int MAGIC = 0x45434f53;
+  static final int VERSION = 5;
+
+  private static final int TYPE_PLANT = 1;
+  private static final int TYPE_BUNNY = 2;
+
+  private WorldSnapshot() {
+  }
+
+  static void write(WorldMap map, DataOutput out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeUTF(map.getMapId());
+    out.writeInt(map.getWidth());
+    out.writeInt(map.getHeight());
+    out.writeLong(map.getTick());
+    out.writeInt(map.getCorpseDecayTicks());
+    map.getConfig().writeTo(out);
+    out.writeLong(map.getSeed());
+    map.getRandom().writeState(out);
+    for (int r = 0; r < map.getWidth(); r++) {
+      for (int c = 0; c < map.getHeight(); c++) {
+        out.writeByte(map.terrain.get(r, c));
+      }
+    }
+    for (int r = 0; r < map.getWidth(); r++) {
+      for (int c = 0; c < map.getHeight(); c++) {
+        out.writeShort(map.elevation.get(r, c));
+      }
+    }
+
+    writeEntities(map, out);
+    out.writeBoolean(map.getPlantPopulation() != null);
+    if (map.getPlantPopulation() != null) {
+      map.getPlantPopulation().writeTo(out);
+    }
+    out.writeBoolean(map.getLevelOfDetail() != null);
+    if (map.getLevelOfDetail() != null) {
+      map.getLevelOfDetail().writeTo(out);
+    }
+  }
+
+  static WorldMap read(DataInput in) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a world snapshot");
+    }
+    int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported world snapshot version " + version);
+    }
+    String mapId = in.readUTF();
+    int width = in.readInt();
+    int height = in.readInt();
+    long tick = in.readLong();
+    int corpseDecayTicks = in.readInt();
+    WorldConfig config = WorldConfig.readFrom(in);
+    long seed = in.readLong();
+    RandomStream random = new RandomStream(seed);
+    random.readState(in);
+    TilePlane terrain =
+        new ChunkedTilePlane(width, height, ChunkedTilePlane.Encoding.BYTE, TerrainType.GROUND);
+    for (int r = 0; r < width; r++) {
+      for (int c = 0; c < height; c++) {
+        terrain.set(r, c, in.readByte());
+      }
+    }
+    TilePlane elevation = new ChunkedTilePlane(width, height, ChunkedTilePlane.Encoding.SHORT, 0);
+    for (int r = 0; r < width; r++) {
+      for (int c = 0; c < height; c++) {
+        elevation.set(r, c, in.readShort());
+      }
+    }
+    terrain.compact();
+    elevation.compact();
+
+    WorldMap map = new WorldMap(mapId, terrain, elevation);
+    map.setTick(tick);
+    map.setCorpseDecayTicks(corpseDecayTicks);
+    map.setConfig(config);
+    readEntities(map, in);
+    if (in.readBoolean()) {
+      map.useCompactPlants();
+      map.getPlantPopulation().readFrom(in);
+    }
+    if (in.readBoolean()) {
+      LevelOfDetail levelOfDetail = new LevelOfDetail(map);
+      levelOfDetail.readFrom(in);
+      map.setLevelOfDetail(levelOfDetail);
+    }
+    // last, restoring entities may have drawn from the map's stream
+    map.setRandom(seed, random);
+    return map;
+  }
+
+  static void writeEntities(WorldMap map, DataOutput out) throws IOException {
+    out.writeInt(map.entityList.size());
+    for (Entity e : map.entityList) {
+      writeEntity(e, out);
+    }
+  }
+
+  /**
+   * Adds the entities written by {@link #writeEntities}, keeping their update order.
+   */
+  static void readEntities(WorldMap map, DataInput in) throws IOException {
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      Entity e = readEntity(map, in);
+      if (!map.addEntity(e, false /* isNewborn */)) {
+        throw new IOException("Entity does not fit on tile " + e.getCurR() + ", " + e.getCurC());
+      }
+    }
+  }
+
+  static void writeEntity(Entity entity, DataOutput out) throws IOException {
+    if (entity instanceof PlantEntity) {
+      out.writeByte(TYPE_PLANT);
+    } else if (entity instanceof BunnyEntity) {
+      out.writeByte(TYPE_BUNNY);
+    } else {
+      throw new IOException("Cannot snapshot entity type " + entity.getClass().getName());
+    }
+    entity.writeState(out);
+  }
+
+  /**
+   * @return the entity written by {@link #writeEntity}, not yet added to {@param map}.
+   */
+  static Entity readEntity(WorldMap map, DataInput in) throws IOException {
+    Entity entity;
+    int type = in.readByte();
+    switch (type) {
+      case TYPE_PLANT:
+        entity = new PlantEntity(map, 0, 0, new RandomStream(0));
+        break;
+      case TYPE_BUNNY:
+        entity = new BunnyEntity(map, 0, 0, new RandomStream(0));
+        break;
+      default:
+        throw new IOException("Unknown entity type " + type);
+    }
+    entity.readState(in);
+    return entity;
+  }
+}
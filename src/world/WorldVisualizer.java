@@ -1,8 +1,5 @@
 package world;
 
-import entity.api.Entity;
-import util.Rect2d;
-
 import javax.swing.*;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
@@ -10,6 +7,9 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 public class WorldVisualizer {
   private static int screenWidth = 800;
@@ -18,14 +18,29 @@ public class WorldVisualizer {
   private static class WorldPanel extends JPanel implements ChangeListener,
       ActionListener {
 
+    // terrain layers kept around for quick switching between elevation slices
+    private static final int CACHED_TERRAIN_LAYERS = 8;
+    // how often the latest snapshot of a simulation thread is shown, about 60 frames per second
+    private static final int FRAME_MILLIS = 16;
+
     private BufferedImage mImage;
-    private Graphics mGraphics;
+    // pixels of mImage, drawn by mRenderer
+    private int[] mPixels;
+    private RasterRenderer mRenderer;
     private WorldMap mMap;
 
-    private final int xBlockWidth;
-    private final int yBlockWidth;
-    private final int xStartBuffer;
-    private final int yStartBuffer;
+    // Terrain pixels without entities, keyed by terrainLayerKey(). Only valid for the map's
+    // terrain version they were drawn at.
+    private final Map<Integer, int[]> mTerrainLayers =
+        new LinkedHashMap<Integer, int[]>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+            return size() > CACHED_TERRAIN_LAYERS;
+          }
+        };
+    private int mTerrainLayersVersion;
+    // layer mImage was last fully drawn from, -1 if none
+    private int mShownLayerKey = -1;
 
     private JSlider elevationSliceSlider;
     private JCheckBox seeAllBelowCheckBox;
@@ -35,23 +50,36 @@ public class WorldVisualizer {
     private JButton autoPlayButton;
     private Timer timer;
 
+    // Runs the ticks when not null, see visualize(WorldMap, double). The panel then only draws
+    // the simulation's snapshots and never touches the entities itself.
+    private SimulationThread mSimulation;
+    private RenderSnapshot mSnapshot;
+
     private WorldPanel(WorldMap map) {
+      this(map, -1);
+    }
+
+    /**
+     * @param ticksPerSecond rate of a simulation thread running the ticks, 0 for full speed, or
+     *                       negative to run ticks on the event dispatch thread.
+     */
+    private WorldPanel(WorldMap map, double ticksPerSecond) {
       mImage = new BufferedImage(
           screenWidth,
           screenHeight,
           BufferedImage.TYPE_INT_RGB);
-      mGraphics = mImage.getGraphics();
-      mGraphics.setColor(Color.WHITE);
-      mGraphics.fillRect(0, 0, screenWidth, screenHeight);
+      mPixels = RasterRenderer.pixelsOf(mImage);
       mMap = map;
+      mTerrainLayersVersion = mMap.getTerrainVersion();
 
       int sliderHeight = 20;
-      int numR = mMap.getWidth();
-      int numC = mMap.getHeight();
-      xBlockWidth = (screenWidth - 2 * 25) / numR;
-      yBlockWidth = (screenHeight - 2 * 25 - sliderHeight) / numC;
-      xStartBuffer = (screenWidth - xBlockWidth * numR) / 2;
-      yStartBuffer = (screenHeight - yBlockWidth * numC) / 2 + sliderHeight;
+      mRenderer = RasterRenderer.fitting(mMap, screenWidth, screenHeight, 25, sliderHeight,
+                                         ForkJoinPool.commonPool());
+      if (ticksPerSecond >= 0) {
+        mSimulation = new SimulationThread(mMap, mRenderer, ticksPerSecond);
+      } else {
+        mMap.trackDirtyTiles();
+      }
 
       elevationSliceSlider = new JSlider(0, mMap.getMaxHeight());
       elevationSliceSlider.setValue(mMap.getMaxHeight());
@@ -74,10 +102,18 @@ public class WorldVisualizer {
       autoPlayButton = new JButton("Play");
       autoPlayButton.addActionListener((ActionEvent e) -> {
         if ("Play".equals(autoPlayButton.getText())) {
-          timer.start();
+          if (mSimulation != null) {
+            mSimulation.play();
+          } else {
+            timer.start();
+          }
           autoPlayButton.setText("Pause");
         } else {
-          timer.stop();
+          if (mSimulation != null) {
+            mSimulation.pause();
+          } else {
+            timer.stop();
+          }
           autoPlayButton.setText("Play");
         }
       });
@@ -94,81 +130,138 @@ public class WorldVisualizer {
     }
 
     private void drawMap() {
-      for (int r = 0; r < mMap.getWidth(); r++) {
-        for (int c = 0; c < mMap.getHeight(); c++) {
-          drawBlock(r, c);
-        }
+      if (mSimulation != null) {
+        mSimulation.start();
+        new Timer(FRAME_MILLIS, e -> showLatestSnapshot()).start();
+        return;
       }
+      drawSlice(elevationSliceSlider.getValue());
+      repaint();
+    }
 
-      for (Entity e : mMap.entityList) {
-        e.draw(mGraphics, getScreenPosition(e.getCurR(), e.getCurC()));
+    /**
+     * Draws the newest snapshot of the simulation thread, if there is one since the last frame.
+     * Snapshots captured in between are never seen.
+     */
+    private void showLatestSnapshot() {
+      RenderSnapshot latest = mSimulation.takeSnapshot(mSnapshot);
+      if (latest == null) {
+        return;
       }
+      mSnapshot = latest;
+      stepCountLabel.setText("Time step: " + mSnapshot.getTick());
+      drawSnapshot(elevationSliceSlider.getValue());
+      repaint();
     }
 
-    private void drawSlice(int elevation) {
-      mGraphics.setColor(Color.WHITE);
-      mGraphics.fillRect(0, 0, screenWidth, screenHeight);
-      for (int r = 0; r < mMap.getWidth(); r++) {
-        for (int c = 0; c < mMap.getHeight(); c++) {
-          if (seeAllBelowCheckBox.isSelected()
-              ? mMap.elevationMap[r][c] <= elevation
-              : mMap.elevationMap[r][c] == elevation) {
-            drawBlock(r, c);
-
-            for (Entity e : mMap.getEntitiesAtPosition(r, c)) {
-              e.draw(mGraphics, getScreenPosition(r, c));
-            }
-          }
-        }
+    private void drawSnapshot(int elevation) {
+      if (mSnapshot == null) {
+        return;
       }
+      boolean seeAllBelow = seeAllBelowCheckBox.isSelected();
+      mRenderer.drawSnapshot(
+          getTerrainLayer(elevation, seeAllBelow), mPixels, mSnapshot, elevation, seeAllBelow);
+    }
+
+    /**
+     * Redraws the whole image: the cached terrain layer for the slice, then the entities on it.
+     */
+    private void drawSlice(int elevation) {
+      boolean seeAllBelow = seeAllBelowCheckBox.isSelected();
+      int[] layer = getTerrainLayer(elevation, seeAllBelow);
+      System.arraycopy(layer, 0, mPixels, 0, layer.length);
+      mRenderer.drawEntities(mPixels, elevation, seeAllBelow);
+      mShownLayerKey = terrainLayerKey(elevation, seeAllBelow);
+      // everything is current now
+      mMap.getDirtyTiles().drain((r0, c0) -> { });
     }
 
-    private void setColorForTile(int r, int c) {
-      float alpha = 0.75f * mMap.elevationMap[r][c] / mMap.getMaxHeight();
-      Color terrainColor = TerrainType.getColorForType(mMap.terrainMap[r][c]);
-      mGraphics.setColor(new Color(
-          (int) (alpha * terrainColor.getRed()),
-          (int) (alpha * terrainColor.getGreen()),
-          (int) (alpha * terrainColor.getBlue())));
+    /**
+     * Redraws only the tiles whose entities changed since the last draw.
+     */
+    private void drawChanges(int elevation) {
+      boolean seeAllBelow = seeAllBelowCheckBox.isSelected();
+      if (mShownLayerKey != terrainLayerKey(elevation, seeAllBelow)
+          || mTerrainLayersVersion != mMap.getTerrainVersion()) {
+        drawSlice(elevation);
+        return;
+      }
+      int[] layer = getTerrainLayer(elevation, seeAllBelow);
+      if (!mMap.getDirtyTiles().drain((r0, c0) -> mRenderer.redrawTiles(
+          layer, mPixels, r0, c0,
+          Math.min(mMap.getWidth(), r0 + DirtyTiles.BLOCK_SIZE),
+          Math.min(mMap.getHeight(), c0 + DirtyTiles.BLOCK_SIZE),
+          elevation, seeAllBelow))) {
+        drawSlice(elevation);
+      }
     }
 
-    private void drawBlock(int r, int c) {
-      setColorForTile(r, c);
-      Rect2d drawRect = getScreenPosition(r, c);
-      mGraphics.fillRect(drawRect.x, drawRect.y, drawRect.width, drawRect.height);
+    private int[] getTerrainLayer(int elevation, boolean seeAllBelow) {
+      if (mTerrainLayersVersion != mMap.getTerrainVersion()) {
+        mTerrainLayers.clear();
+        mTerrainLayersVersion = mMap.getTerrainVersion();
+      }
+      int key = terrainLayerKey(elevation, seeAllBelow);
+      int[] layer = mTerrainLayers.get(key);
+      if (layer == null) {
+        layer = new int[screenWidth * screenHeight];
+        mRenderer.drawTerrain(layer, elevation, seeAllBelow);
+        mTerrainLayers.put(key, layer);
+      }
+      return layer;
     }
 
-    private Rect2d getScreenPosition(int r, int c) {
-      int x = xStartBuffer + r * xBlockWidth;
-      int y = yStartBuffer + c * yBlockWidth;
-      return new Rect2d(x, y, xBlockWidth, yBlockWidth);
+    private static int terrainLayerKey(int elevation, boolean seeAllBelow) {
+      return 2 * elevation + (seeAllBelow ? 1 : 0);
     }
 
     @Override
     // Updates the graphics to reflect any changes that may have occurred.
     public void stateChanged(ChangeEvent e) {
-      drawSlice(elevationSliceSlider.getValue());
+      if (mSimulation != null) {
+        drawSnapshot(elevationSliceSlider.getValue());
+      } else {
+        drawSlice(elevationSliceSlider.getValue());
+      }
       repaint();
     }
 
     @Override
     // Update entities, and then update the visuals
     public void actionPerformed(ActionEvent e) {
+      if (mSimulation != null) {
+        mSimulation.step();
+        return;
+      }
       timeStep++;
       stepCountLabel.setText("Time step: " + timeStep);
       mMap.updateEntities();
-      stateChanged(null);
+      drawChanges(elevationSliceSlider.getValue());
+      repaint();
     }
   }
 
 
   public static void visualize(WorldMap worldMap) {
-    //init viewing window
+    show(new WorldPanel(worldMap));
+  }
+
+  /**
+   * Like {@link #visualize(WorldMap)}, but the simulation runs on a thread of its own at
+   * {@param ticksPerSecond} while playing, or as fast as it can if 0. The view shows the latest
+   * tick at display rate and skips the ones in between, so it stays responsive however slow or
+   * fast the ticks are. The map must not be used elsewhere once visualized.
+   */
+  public static void visualize(WorldMap worldMap, double ticksPerSecond) {
+    show(new WorldPanel(worldMap, Math.max(0, ticksPerSecond)));
+  }
+
+  // Opens a viewing window on the panel, which ticks its map in the way it was created for.
+  private static void show(WorldPanel panel) {
     JFrame playWindow = new JFrame("World Visualizer");
     playWindow.setSize(screenWidth + 8, screenHeight + 34);
     playWindow.setLocation(100, 100);
     playWindow.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-    WorldPanel panel = new WorldPanel(worldMap);
     playWindow.setContentPane(panel);
     playWindow.setVisible(true);
     playWindow.setResizable(false);